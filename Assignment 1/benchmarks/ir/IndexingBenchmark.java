@@ -0,0 +1,98 @@
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks Indexer.insertIntoIndex on the tokens of the
+ * {@link SyntheticCorpus}, into a HashedIndex alone ("hashed") or together
+ * with the KGramIndex for spelling correction, as the Engine does
+ * ("hashed+kgram"). The cost of the k-gram index is the difference.
+ * <p>
+ * The documents are tokenized once, in the setup. Every invocation indexes
+ * all of them into new, empty indexes, so the indexes grow as in a real
+ * run. Besides the documents per second, JMH reports the tokens and
+ * megabytes (of UTF-8 text) per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class IndexingBenchmark {
+
+    static final int DOCUMENTS = 1000;
+
+    @Param({"hashed", "hashed+kgram"})
+    public String indexes;
+
+    String[][] tokens;
+    double megabytes;
+    Indexer indexer;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String patternsFile = new File(TokenizerBenchmark.PATTERNS_FILE).exists() ? TokenizerBenchmark.PATTERNS_FILE : null;
+        SyntheticCorpus corpus = new SyntheticCorpus(DOCUMENTS, SyntheticCorpus.DEFAULT_MEAN_LENGTH, SyntheticCorpus.DEFAULT_VOCABULARY);
+        tokens = new String[DOCUMENTS][];
+        for (int d = 0; d < DOCUMENTS; d++) {
+            String text = corpus.text(d);
+            megabytes += text.getBytes(StandardCharsets.UTF_8).length / 1e6;
+            ArrayList<String> docTokens = new ArrayList<>();
+            try {
+                Tokenizer tok = new Tokenizer(new StringReader(text), true, false, true, patternsFile);
+                while (tok.hasMoreTokens()) {
+                    docTokens.add(tok.nextToken());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            tokens[d] = docTokens.toArray(new String[0]);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void newIndexes() {
+        if ("hashed".equals(indexes)) {
+            indexer = new Indexer(new HashedIndex(), null, null);
+        } else if ("hashed+kgram".equals(indexes)) {
+            indexer = new Indexer(new HashedIndex(), new KGramIndex(2), null);
+        } else {
+            throw new IllegalArgumentException("Unknown indexes: " + indexes);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCUMENTS)
+    public Indexer insertIntoIndex(Throughput throughput) {
+        for (int d = 0; d < DOCUMENTS; d++) {
+            for (int offset = 0; offset < tokens[d].length; offset++) {
+                indexer.insertIntoIndex(d, tokens[d][offset], offset);
+            }
+            throughput.tokens += tokens[d].length;
+        }
+        throughput.megabytes += megabytes;
+        return indexer;
+    }
+}
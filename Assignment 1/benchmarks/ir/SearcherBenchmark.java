@@ -0,0 +1,96 @@
+package ir;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks every query path of the Searcher on an index of the
+ * {@link SyntheticCorpus}, built once per fork.
+ * <p>
+ * Every invocation evaluates the next of a fixed set of queries, with the
+ * result cache turned off, so each one is evaluated in full. The parameters
+ * are the index implementation, the number of terms per query and the
+ * frequency band of the terms (see {@link SyntheticCorpus#queries}).
+ * HITS iterates over the whole base set of a query, so it takes about a
+ * second per query even on rare terms; select it with e.g.
+ * <code>-p termMix=rare</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class SearcherBenchmark {
+
+    static final int QUERIES = 64;
+    static final int K = Searcher.DEFAULT_TOP_K;
+
+    @Param({"hashed", "persistent"})
+    public String indexType;
+
+    @Param({"1", "2", "4"})
+    public int queryLength;
+
+    @Param({"frequent", "mixed", "rare"})
+    public String termMix;
+
+    Searcher searcher;
+    String[] queries;
+    String[] phrases;
+    int next = 0;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticCorpus corpus = new SyntheticCorpus();
+        Index index = corpus.buildIndex(indexType);
+        searcher = new Searcher(index, new KGramIndex(2));
+        searcher.resultCache = new ResultCache(0);
+        searcher.pageRank = corpus.pageRank();
+        queries = corpus.queries(QUERIES, queryLength, termMix);
+        phrases = corpus.phrases(QUERIES, queryLength, termMix);
+    }
+
+    private PostingsList search(String[] queries, QueryType queryType, RankingType rankingType) {
+        next = (next + 1) % QUERIES;
+        return searcher.search(new Query(queries[next]), queryType, rankingType, NormalizationType.NUMBER_OF_WORDS, K);
+    }
+
+    @Benchmark
+    public PostingsList intersection() {
+        return search(queries, QueryType.INTERSECTION_QUERY, RankingType.TF_IDF);
+    }
+
+    @Benchmark
+    public PostingsList phrase() {
+        return search(phrases, QueryType.PHRASE_QUERY, RankingType.TF_IDF);
+    }
+
+    @Benchmark
+    public PostingsList rankedTfIdf() {
+        return search(queries, QueryType.RANKED_QUERY, RankingType.TF_IDF);
+    }
+
+    @Benchmark
+    public PostingsList rankedCombination() {
+        return search(queries, QueryType.RANKED_QUERY, RankingType.COMBINATION);
+    }
+
+    @Benchmark
+    public PostingsList rankedHits() {
+        return search(queries, QueryType.RANKED_QUERY, RankingType.HITS);
+    }
+}
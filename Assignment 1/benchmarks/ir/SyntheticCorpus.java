@@ -0,0 +1,316 @@
+package ir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import pagerank.PageRank;
+
+/**
+ * A generated corpus for the benchmarks. It is built from a fixed seed,
+ * so every run sees the same documents.
+ * <p>
+ * Words are drawn from a Zipf distribution over a generated vocabulary, as
+ * in natural text, so postings lists range from a few documents to almost
+ * all of them. The documents are named after the titles of the Davis wiki
+ * (Assignment 2), when that file is found, so that the HITS link graph
+ * applies to them.
+ */
+public class SyntheticCorpus {
+
+    public static final long SEED = 2477;
+
+    public static final int DEFAULT_DOCUMENTS = 10000;
+    public static final int DEFAULT_MEAN_LENGTH = 250;
+    public static final int DEFAULT_VOCABULARY = 50000;
+
+    /**
+     * Query terms are picked from these bands of the vocabulary, by
+     * document frequency.
+     */
+    public static final int FREQUENT_TERMS = 100;
+    public static final int MIN_RARE_DF = 5;
+    public static final int MAX_RARE_DF = 50;
+
+    static {
+        // Persistent indexes are written to a scratch directory, never to the real index.
+        if (System.getProperty("ir.indexDir") == null) {
+            try {
+                System.setProperty("ir.indexDir", Files.createTempDirectory("ir-bench").toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    final String[] vocabulary;
+    final String[] names;
+
+    /**
+     * The words of every document, as indexes into the vocabulary.
+     */
+    final int[][] documents;
+
+    final int[] df;
+    final int[] frequentTerms;
+    final int[] rareTerms;
+
+
+    public SyntheticCorpus() {
+        this(DEFAULT_DOCUMENTS, DEFAULT_MEAN_LENGTH, DEFAULT_VOCABULARY);
+    }
+
+    /**
+     * Generates <code>numberOfDocuments</code> documents of on average
+     * <code>meanLength</code> words.
+     */
+    public SyntheticCorpus(int numberOfDocuments, int meanLength, int vocabularySize) {
+        Random random = new Random(SEED);
+        vocabulary = new String[vocabularySize];
+        for (int i = 0; i < vocabularySize; i++) {
+            vocabulary[i] = word(i);
+        }
+        double[] cumulative = new double[vocabularySize];
+        double sum = 0;
+        for (int i = 0; i < vocabularySize; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+
+        names = readTitles(numberOfDocuments);
+        documents = new int[numberOfDocuments][];
+        df = new int[vocabularySize];
+        int[] lastDoc = new int[vocabularySize];
+        Arrays.fill(lastDoc, -1);
+        for (int d = 0; d < numberOfDocuments; d++) {
+            int length = meanLength / 2 + random.nextInt(meanLength + 1);
+            documents[d] = new int[length];
+            for (int i = 0; i < length; i++) {
+                int w = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                w = Math.min(vocabularySize - 1, w < 0 ? -w - 1 : w);
+                documents[d][i] = w;
+                if (lastDoc[w] != d) {
+                    lastDoc[w] = d;
+                    df[w]++;
+                }
+            }
+        }
+
+        Integer[] byDf = new Integer[vocabularySize];
+        for (int i = 0; i < vocabularySize; i++) {
+            byDf[i] = i;
+        }
+        Arrays.sort(byDf, Comparator.comparingInt((Integer w) -> -df[w]).thenComparingInt(w -> w));
+        frequentTerms = new int[Math.min(FREQUENT_TERMS, vocabularySize)];
+        for (int i = 0; i < frequentTerms.length; i++) {
+            frequentTerms[i] = byDf[i];
+        }
+        ArrayList<Integer> rare = new ArrayList<>();
+        for (int w : byDf) {
+            if (df[w] >= MIN_RARE_DF && df[w] <= MAX_RARE_DF) {
+                rare.add(w);
+            }
+        }
+        rareTerms = rare.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * The word of the given rank: a distinct string of consonant-vowel
+     * syllables, shorter for the more frequent words.
+     */
+    static String word(int rank) {
+        String consonants = "bcdfghjklmnprstvz";
+        String vowels = "aeiou";
+        int syllables = consonants.length() * vowels.length();
+        StringBuilder word = new StringBuilder();
+        int r = rank;
+        do {
+            int syllable = r % syllables;
+            word.append(consonants.charAt(syllable / vowels.length())).append(vowels.charAt(syllable % vowels.length()));
+            r = r / syllables - 1;
+        } while (r >= 0);
+        return word.toString();
+    }
+
+    /**
+     * The file names of the first documents of the Davis wiki, or made-up
+     * names if the titles are not found.
+     */
+    static String[] readTitles(int n) {
+        String[] titles = new String[n];
+        int i = 0;
+        File file = new File(Searcher.TITLES_FILE);
+        if (file.exists()) {
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                String line;
+                while (i < n && (line = br.readLine()) != null) {
+                    titles[i++] = line.substring(line.indexOf(';') + 1);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        for (; i < n; i++) {
+            titles[i] = "doc" + i + ".f";
+        }
+        return titles;
+    }
+
+    /**
+     * Builds an index of the corpus: "hashed" for a HashedIndex, "persistent"
+     * for a PersistentHashedIndex committed to the scratch directory.
+     */
+    public Index buildIndex(String type) {
+        Index index;
+        if ("hashed".equals(type)) {
+            index = new HashedIndex();
+        } else if ("persistent".equals(type)) {
+            index = new PersistentHashedIndex();
+        } else {
+            throw new IllegalArgumentException("Unknown index type: " + type);
+        }
+        Index.docNames.clear();
+        Index.docLengths.clear();
+        Searcher.euclideanLengths.clear();
+        for (int d = 0; d < documents.length; d++) {
+            index.putDocInfo(d, names[d], documents[d].length);
+            for (int i = 0; i < documents[d].length; i++) {
+                index.insert(vocabulary[documents[d][i]], d, i);
+            }
+        }
+        index.cleanup();
+        return index;
+    }
+
+    /**
+     * A PageRank with made-up scores for the documents of the corpus.
+     */
+    public PageRank pageRank() {
+        Random random = new Random(SEED + 1);
+        double[] scores = new double[names.length];
+        double sum = 0;
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = Math.pow(random.nextDouble(), 4);
+            sum += scores[i];
+        }
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] /= sum;
+        }
+        return new PageRank(names, scores);
+    }
+
+    /**
+     * Returns <code>count</code> queries of <code>length</code> terms each.
+     * The mix is "frequent" (terms from the most common ones), "rare" (terms
+     * from the rare ones) or "mixed" (alternating).
+     */
+    public String[] queries(int count, int length, String mix) {
+        Random random = new Random(SEED + 2);
+        String[] queries = new String[count];
+        for (int q = 0; q < count; q++) {
+            StringBuilder query = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                query.append(i > 0 ? " " : "").append(vocabulary[term(mix, i, random)]);
+            }
+            queries[q] = query.toString();
+        }
+        return queries;
+    }
+
+    /**
+     * Returns <code>count</code> phrases of <code>length</code> words, taken
+     * from the documents so that they occur at least once. With the
+     * "frequent" and "rare" mixes, a phrase starts with a word of that band.
+     */
+    public String[] phrases(int count, int length, String mix) {
+        Random random = new Random(SEED + 3);
+        String[] phrases = new String[count];
+        for (int q = 0; q < count; q++) {
+            int[] doc;
+            int start;
+            int attempts = 0;
+            do {
+                doc = documents[random.nextInt(documents.length)];
+                start = random.nextInt(Math.max(1, doc.length - length + 1));
+            } while (++attempts < 10000 && !inBand(mix, doc[start]));
+            StringBuilder phrase = new StringBuilder();
+            for (int i = start; i < Math.min(doc.length, start + length); i++) {
+                phrase.append(i > start ? " " : "").append(vocabulary[doc[i]]);
+            }
+            phrases[q] = phrase.toString();
+        }
+        return phrases;
+    }
+
+    /**
+     * The text of document <code>d</code>: its words in sentences, with
+     * capitals, commas and full stops, and now and then a word of the kinds
+     * matched by patterns.txt (web addresses, e-mail addresses, numbers,
+     * amounts and file names).
+     */
+    public String text(int d) {
+        Random random = new Random(SEED * 31 + d);
+        StringBuilder text = new StringBuilder();
+        int sentenceLength = 0;
+        for (int i = 0; i < documents[d].length; i++) {
+            String word = vocabulary[documents[d][i]];
+            if (sentenceLength == 0) {
+                text.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+            } else {
+                text.append(' ').append(word);
+            }
+            sentenceLength++;
+            if (random.nextInt(40) == 0) {
+                text.append(' ').append(nonStandardWord(random));
+            }
+            if (random.nextInt(12) == 0) {
+                text.append('.');
+                text.append(random.nextInt(8) == 0 ? "\n\n" : " ");
+                sentenceLength = 0;
+            } else if (random.nextInt(10) == 0) {
+                text.append(',');
+            }
+        }
+        return text.append(".\n").toString();
+    }
+
+    private String nonStandardWord(Random random) {
+        String a = vocabulary[random.nextInt(1000)];
+        String b = vocabulary[random.nextInt(1000)];
+        int kind = random.nextInt(6);
+        if (kind == 0) {
+            return "https://www." + a + ".org/" + b + ".html";
+        } else if (kind == 1) {
+            return a + "." + b + "@ucdavis.edu";
+        } else if (kind == 2) {
+            return String.valueOf(1900 + random.nextInt(120));
+        } else if (kind == 3) {
+            return (1 + random.nextInt(31)) + "/" + (1 + random.nextInt(12));
+        } else if (kind == 4) {
+            return "$" + random.nextInt(1000) + "." + (10 + random.nextInt(90));
+        }
+        return a + "_" + b + ".docx";
+    }
+
+    private int term(String mix, int i, Random random) {
+        boolean frequent = "frequent".equals(mix) || ("mixed".equals(mix) && i % 2 == 0);
+        int[] band = frequent || rareTerms.length == 0 ? frequentTerms : rareTerms;
+        return band[random.nextInt(band.length)];
+    }
+
+    private boolean inBand(String mix, int w) {
+        if ("frequent".equals(mix)) {
+            return df[w] >= df[frequentTerms[frequentTerms.length - 1]];
+        } else if ("rare".equals(mix)) {
+            return df[w] >= MIN_RARE_DF && df[w] <= MAX_RARE_DF;
+        }
+        return true;
+    }
+}
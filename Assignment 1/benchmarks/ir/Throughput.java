@@ -0,0 +1,26 @@
+package ir;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the tokens and the megabytes of text processed by a benchmark.
+ * JMH reports them per second next to the score, as tokens/s and MB/s.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+
+    public long tokens;
+    public double megabytes;
+
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        tokens = 0;
+        megabytes = 0;
+    }
+}
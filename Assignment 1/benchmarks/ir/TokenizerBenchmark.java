@@ -0,0 +1,85 @@
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the Tokenizer on the text of the {@link SyntheticCorpus},
+ * with and without the patterns of non-standard words.
+ * <p>
+ * Every invocation tokenizes the same sample of documents, with a new
+ * Tokenizer per document as in the Indexer, so reading the patterns file is
+ * part of the cost. Besides the documents per second, JMH reports the
+ * tokens and megabytes (of UTF-8 text) per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class TokenizerBenchmark {
+
+    static final int DOCUMENTS = 1000;
+
+    /**
+     * The patterns file of the engine, relative to this directory.
+     */
+    static final String PATTERNS_FILE = System.getProperty("ir.patternsFile", "../src/patterns.txt");
+
+    @Param({"none", "patterns"})
+    public String patterns;
+
+    String[] texts;
+    double[] megabytes;
+    String patternsFile;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("patterns".equals(patterns)) {
+            if (!new File(PATTERNS_FILE).exists()) {
+                throw new IllegalStateException("Patterns file not found: " + PATTERNS_FILE);
+            }
+            patternsFile = PATTERNS_FILE;
+        }
+        SyntheticCorpus corpus = new SyntheticCorpus(DOCUMENTS, SyntheticCorpus.DEFAULT_MEAN_LENGTH, SyntheticCorpus.DEFAULT_VOCABULARY);
+        texts = new String[DOCUMENTS];
+        megabytes = new double[DOCUMENTS];
+        for (int d = 0; d < DOCUMENTS; d++) {
+            texts[d] = corpus.text(d);
+            megabytes[d] = texts[d].getBytes(StandardCharsets.UTF_8).length / 1e6;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCUMENTS)
+    public void tokenize(Throughput throughput, Blackhole blackhole) throws IOException {
+        for (int d = 0; d < DOCUMENTS; d++) {
+            Tokenizer tok = new Tokenizer(new StringReader(texts[d]), true, false, true, patternsFile);
+            while (tok.hasMoreTokens()) {
+                blackhole.consume(tok.nextToken());
+                throughput.tokens++;
+            }
+            throughput.megabytes += megabytes[d];
+        }
+    }
+}
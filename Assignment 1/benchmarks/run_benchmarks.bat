@@ -0,0 +1,7 @@
+rem JMH benchmarks of the search engine. Compile the engine first with
+rem ..\src\compile_all.bat, and put the JMH jars in lib\: jmh-core,
+rem jmh-generator-annprocess, jopt-simple and commons-math3.
+rem The arguments are passed on to JMH.
+if not exist classes mkdir classes
+javac -cp "../src/classes;lib/*" -processor org.openjdk.jmh.generators.BenchmarkProcessor -d classes ir/*.java
+java -cp "classes;../src/classes;lib/*" org.openjdk.jmh.Main -prof gc %*
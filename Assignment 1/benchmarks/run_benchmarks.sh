@@ -0,0 +1,12 @@
+#!/bin/sh
+# JMH benchmarks of the search engine. Compile the engine first with
+# ../src/compile_all.sh, and put the JMH jars in lib/: jmh-core,
+# jmh-generator-annprocess, jopt-simple and commons-math3.
+# The arguments are passed on to JMH, e.g.
+#   ./run_benchmarks.sh SearcherBenchmark.phrase -p indexType=hashed
+if ! [ -d classes ];
+then
+   mkdir classes
+fi
+javac -cp "../src/classes:lib/*" -processor org.openjdk.jmh.generators.BenchmarkProcessor -d classes ir/*.java
+java -cp "classes:../src/classes:lib/*" org.openjdk.jmh.Main -prof gc "$@"
@@ -1,2 +1,2 @@
 if not exist classes mkdir classes
-javac -cp . -d classes ir/Engine.java ir/HashedIndex.java ir/HITSRanker.java ir/Index.java ir/Indexer.java ir/KGramIndex.java ir/KGramPostingsEntry.java ir/NormalizationType.java ir/PersistentHashedIndex.java ir/PostingsEntry.java ir/PostingsList.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/Searcher.java ir/SearchGUI.java ir/SpellChecker.java ir/SpellingOptionsDialog.java ir/Tokenizer.java ir/TokenTest.java 
+javac -cp . -d classes ir/AndIterator.java ir/BiwordIndex.java ir/BlockMaxWandEvaluator.java ir/BlockTermIterator.java ir/CancellationToken.java ir/BloomFilter.java ir/ChampionList.java ir/ComponentLoader.java ir/DocIterator.java ir/Engine.java ir/Events.java ir/HashedIndex.java ir/HITSRanker.java ir/Index.java ir/IndexGeneration.java ir/Indexer.java ir/KGramIndex.java ir/KGramPostingsEntry.java ir/Metrics.java ir/NormalizationType.java ir/NotIterator.java ir/OrIterator.java ir/PersistentHashedIndex.java ir/PhraseIterator.java ir/PostingsBlocks.java ir/PostingsEntry.java ir/PostingsList.java ir/ProximityIterator.java ir/PruningType.java ir/QueryRunner.java ir/QueryTrace.java ir/Query.java ir/QueryType.java ir/RankedPostingsList.java ir/RankingType.java ir/ResultCache.java ir/ScoreAccumulator.java ir/Searcher.java ir/SearchGUI.java ir/SearchServer.java ir/SpellChecker.java ir/SpellingOptionsDialog.java ir/TermIterator.java ir/TermStats.java ir/Tokenizer.java ir/TokenTest.java ir/WandEvaluator.java 
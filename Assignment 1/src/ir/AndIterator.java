@@ -0,0 +1,80 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Matches the documents matched by all of its children. The children leapfrog:
+ * each one in turn skips ahead to the document the previous one stopped at,
+ * until they all agree.
+ * <p>
+ * The children are ordered by cost, so the rarest one leads and the others
+ * gallop ahead to its documents, skipping most of their postings. The
+ * intersection ends as soon as the rarest child runs out.
+ */
+public class AndIterator extends DocIterator {
+
+    private final DocIterator[] children;
+    private int doc = -1;
+
+    public AndIterator(List<DocIterator> children) {
+        this.children = children.toArray(new DocIterator[0]);
+        Arrays.sort(this.children, Comparator.comparingLong(DocIterator::cost));
+    }
+
+    public int docID() {
+        return doc;
+    }
+
+    public int nextDoc() {
+        return align(children[0].nextDoc());
+    }
+
+    public int advance(int target) {
+        if (doc >= target) {
+            return doc;
+        }
+        return align(children[0].advance(target));
+    }
+
+    /**
+     * Moves all children to the first document at or after <code>target</code>
+     * which they all match. The first child is at <code>target</code>.
+     */
+    private int align(int target) {
+        outer:
+        while (target != NO_MORE_DOCS) {
+            for (int i = 1; i < children.length; i++) {
+                int other = children[i].advance(target);
+                if (other > target) {
+                    target = children[0].advance(other);
+                    continue outer;
+                }
+            }
+            return doc = target;
+        }
+        return doc = NO_MORE_DOCS;
+    }
+
+    public double score() {
+        double score = 0;
+        for (DocIterator child : children) {
+            score += child.score();
+        }
+        return score;
+    }
+
+    public ArrayList<Integer> positions() {
+        return mergePositions(List.of(children));
+    }
+
+    public long cost() {
+        long cost = Long.MAX_VALUE;
+        for (DocIterator child : children) {
+            cost = Math.min(cost, child.cost());
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,241 @@
+package ir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An index of word pairs ("of the", "new york"), for answering phrase
+ * queries on frequent pairs without matching the positions of two long
+ * postings lists.
+ * <p>
+ * The Indexer adds every pair of consecutive words, with the position of
+ * the second word, so the postings of a pair are exactly the result of the
+ * phrase query on it. Only the pairs occurring in at least
+ * <code>minDocumentFrequency</code> documents are saved. The postings are
+ * saved in the same format as in the data file of a PersistentHashedIndex,
+ * and a dictionary file maps every pair to where its postings are. Once
+ * read, only the dictionary is kept in memory, and the postings are read
+ * with positional reads, so any number of threads can look up pairs at the
+ * same time.
+ * <p>
+ * Along with a persistent index, the biword index is written into every
+ * generation committed, so that its docIDs always match those of the
+ * postings searched with it, and its files are checksummed with the others.
+ */
+public class BiwordIndex {
+
+    public static final String DICTIONARY_SUFFIX = ".dict";
+
+    /**
+     * The pairs occurring in fewer documents than this are not saved.
+     */
+    final int minDocumentFrequency;
+
+    /**
+     * The postings of every pair, while indexing.
+     */
+    private final HashMap<String, PostingsList> index = new HashMap<>();
+
+    /**
+     * Where the postings of every saved pair are in the data file, once read.
+     */
+    private final HashMap<String, long[]> dictionary = new HashMap<>();
+    private FileChannel dataFile;
+
+    /**
+     * The generation of a persistent index the files were read from, and the
+     * name of the data file in it, or null if the files are not in one.
+     */
+    private IndexGeneration generation;
+    private String dataFname;
+
+    /**
+     * The last word added to the index, and the document it is in.
+     */
+    private String lastWord;
+    private int lastDocID = -1;
+
+
+    public BiwordIndex(int minDocumentFrequency) {
+        this.minDocumentFrequency = minDocumentFrequency;
+    }
+
+    /**
+     * Returns the key of a pair of words. Words never contain spaces.
+     */
+    static String key(String first, String second) {
+        return first + " " + second;
+    }
+
+    /**
+     * Adds the pair of the word last added and this one, if they are in
+     * the same document. Words must be added in order.
+     */
+    public void insert(String token, int docID, int offset) {
+        if (docID == lastDocID) {
+            String key = key(lastWord, token);
+            PostingsList postingsList = index.get(key);
+            if (postingsList == null) {
+                postingsList = new PostingsList();
+                index.put(key, postingsList);
+            }
+            if (postingsList.size() > 0 && postingsList.get(postingsList.size() - 1).docID == docID) {
+                postingsList.get(postingsList.size() - 1).score++;
+                postingsList.get(postingsList.size() - 1).offsets.add(offset);
+            } else {
+                postingsList.add(docID, offset, 1);
+            }
+        }
+        lastWord = token;
+        lastDocID = docID;
+    }
+
+    /**
+     * Returns true if the pair is in the index.
+     */
+    public boolean contains(String first, String second) {
+        String key = key(first, second);
+        return dataFile != null ? dictionary.containsKey(key) : index.containsKey(key);
+    }
+
+    /**
+     * Returns the postings of a pair: the documents in which the phrase
+     * occurs, with the positions of its second word. Returns null if the
+     * pair is not in the index.
+     */
+    public PostingsList getPostings(String first, String second) {
+        String key = key(first, second);
+        if (dataFile == null) {
+            return index.get(key);
+        }
+        long[] entry = dictionary.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            if (generation != null) {
+                generation.verify(dataFname, dataFile, entry[0], entry[1]);
+            }
+            ByteBuffer data = ByteBuffer.allocate((int) entry[1]);
+            PersistentHashedIndex.readFully(dataFile, data, entry[0]);
+            return PostingsList.fromString(new String(data.array(), StandardCharsets.ISO_8859_1));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The number of pairs which are, or will be, saved.
+     */
+    public int size() {
+        if (dataFile != null) {
+            return dictionary.size();
+        }
+        int size = 0;
+        for (PostingsList postingsList : index.values()) {
+            if (postingsList.size() >= minDocumentFrequency) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Saves the frequent pairs to <code>filename</code>, and the dictionary
+     * to <code>filename + DICTIONARY_SUFFIX</code>.
+     */
+    public void save(String filename) {
+        try {
+            write(filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the frequent pairs and the dictionary as {@link #save} does,
+     * but lets a failure through, e.g. to fail the commit of a generation.
+     */
+    public void write(String filename) throws IOException {
+        try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+             DataOutputStream dict = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename + DICTIONARY_SUFFIX)))) {
+            dict.writeInt(size());
+            long ptr = 0;
+            for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
+                if (entry.getValue().size() < minDocumentFrequency) {
+                    continue;
+                }
+                String postings = entry.getValue().toString();
+                byte[] bytes = postings.substring(0, postings.length() - 1).getBytes(StandardCharsets.ISO_8859_1);
+                data.write(bytes);
+                data.write('\n');
+                dict.writeUTF(entry.getKey());
+                dict.writeLong(ptr);
+                dict.writeInt(bytes.length);
+                ptr += bytes.length + 1;
+            }
+        }
+        System.err.println("Biword index written: " + size() + " pairs");
+    }
+
+    /**
+     * Reads the dictionary of an index saved by {@link #save}, and opens its
+     * postings for reading. Returns this index, empty if there is none.
+     */
+    public BiwordIndex read(String filename) throws IOException {
+        File dictFile = new File(filename + DICTIONARY_SUFFIX);
+        if (!dictFile.exists()) {
+            return this;
+        }
+        try (DataInputStream dict = new DataInputStream(new BufferedInputStream(new FileInputStream(dictFile)))) {
+            int n = dict.readInt();
+            for (int i = 0; i < n; i++) {
+                String key = dict.readUTF();
+                dictionary.put(key, new long[]{dict.readLong(), dict.readInt()});
+            }
+        }
+        index.clear();
+        dataFile = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        return this;
+    }
+
+    /**
+     * Reads an index written into a generation of a persistent index. Its
+     * dictionary is verified against the manifest when it is read, and its
+     * postings when they are read. Returns this index, empty if the
+     * generation has none.
+     */
+    public BiwordIndex read(IndexGeneration generation, String fname) throws IOException {
+        if (!generation.contains(fname + DICTIONARY_SUFFIX)) {
+            return this;
+        }
+        generation.verifyFile(fname + DICTIONARY_SUFFIX);
+        read(generation.path(fname));
+        this.generation = generation;
+        this.dataFname = fname;
+        return this;
+    }
+
+    /**
+     * Closes the postings file, if it has been read.
+     */
+    public void close() throws IOException {
+        if (dataFile != null) {
+            dataFile.close();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Evaluates tf-idf ranked queries with Block-Max WAND (Ding and Suel,
+ * "Faster top-k document retrieval using block-max indexes", 2011).
+ * <p>
+ * Like WAND, a pivot document is chosen with the upper bounds of whole
+ * terms. The bounds of the blocks containing the pivot (see
+ * {@link PostingsBlocks}) are then added up as well; if even they cannot
+ * beat the k-th best score, every document up to the end of the shortest of
+ * these blocks is skipped without reading the blocks. Blocks are read and
+ * decoded only when a cursor actually lands in them, so the long postings
+ * lists of common terms are mostly never read.
+ */
+public class BlockMaxWandEvaluator extends WandEvaluator {
+
+    /**
+     * A cursor over a postings list which is read one block at a time (see
+     * {@link BlockTermIterator}). A postings list without a block table is
+     * read whole, as one block.
+     */
+    static class BlockCursor extends Cursor {
+        final PostingsBlocks blocks;
+        final NormalizationType normType;
+        final int numBlocks;
+
+        /**
+         * The last document of a postings list without a block table.
+         */
+        final int lastDocID;
+
+        /**
+         * The block which may hold the pivot, used for the block bounds.
+         */
+        int shallow = 0;
+
+        BlockCursor(PostingsBlocks blocks, DocIterator postings, int lastDocID, double idf, double weight, double upperBound,
+                    NormalizationType normType) {
+            super(postings, idf, weight, upperBound);
+            this.blocks = blocks;
+            this.lastDocID = lastDocID;
+            this.normType = normType;
+            numBlocks = blocks == null ? 1 : blocks.size();
+        }
+
+        int lastDocID(int b) {
+            return blocks != null ? blocks.lastDocIDs[b] : lastDocID;
+        }
+
+        /**
+         * Moves the bound block to the one which may hold <code>target</code>,
+         * without reading anything.
+         */
+        void shallowAdvance(int target) {
+            if (shallow < numBlocks && lastDocID(shallow) < target) {
+                shallow = blocks == null ? numBlocks : blocks.find(shallow + 1, target);
+            }
+        }
+
+        /**
+         * The bound of the block which may hold the pivot, 0 if there is none.
+         */
+        double blockBound() {
+            if (shallow >= numBlocks) {
+                return 0;
+            }
+            if (blocks == null) {
+                return upperBound;
+            }
+            return blocks.maxTfPerNorm(shallow, normType) * idf * weight * BOUND_SLACK;
+        }
+
+        /**
+         * The last document of the block which may hold the pivot.
+         */
+        int shallowLastDocID() {
+            return shallow < numBlocks ? lastDocID(shallow) : NO_MORE_DOCS;
+        }
+    }
+
+
+    public BlockMaxWandEvaluator(Index index, HashMap<Integer, Double> euclideanLengths) {
+        super(index, euclideanLengths);
+    }
+
+    /**
+     * Returns the k best documents for the query, or null if the query has a
+     * term with a negative weight, for which the bounds do not hold.
+     */
+    @Override
+    public RankedPostingsList search(Query query, NormalizationType normType, int k) {
+        int N = Index.docLengths.size();
+        ArrayList<BlockCursor> cursors = new ArrayList<>();
+        double inNone = 1;
+        for (int i = 0; i < query.queryterm.size(); i++) {
+            String term = query.queryterm.get(i).term;
+            TermStats stats = index.getTermStats(term);
+            if (stats == null) {
+                continue;
+            }
+            inNone *= 1 - (double) stats.df / N;
+            double idf = Math.log((double) N / stats.df);
+            double weight = query.queryterm.get(i).weight;
+            if (idf * weight < 0) {
+                return null;
+            }
+            if (idf * weight == 0) {
+                // Adds nothing to any score.
+                continue;
+            }
+            PostingsBlocks blocks = index.getPostingsBlocks(term);
+            DocIterator postings;
+            int lastDocID = -1;
+            if (blocks != null) {
+                postings = new BlockTermIterator(index, blocks, stats.df);
+            } else {
+                PostingsList postingsList = index.getPostings(term);
+                if (postingsList == null) {
+                    continue;
+                }
+                postings = new TermIterator(postingsList);
+                lastDocID = postingsList.size() > 0 ? postingsList.get(postingsList.size() - 1).docID : -1;
+            }
+            cursors.add(new BlockCursor(blocks, postings, lastDocID, idf, weight,
+                    stats.maxTfPerNorm(normType) * idf * weight * BOUND_SLACK, normType));
+        }
+        // The cursors in query order, so that scores are added up in the same order as
+        // in the exhaustive evaluation, and sorted by their current document.
+        BlockCursor[] terms = cursors.toArray(new BlockCursor[0]);
+        BlockCursor[] sorted = terms.clone();
+
+        TopDocs top = new TopDocs(k);
+        CancellationToken cancellation = CancellationToken.current();
+        for (int step = 0; ; step++) {
+            cancellation.check(step);
+            sortByDoc(sorted);
+            double threshold = top.threshold();
+            int pivot = -1;
+            double bound = 0;
+            for (int i = 0; i < sorted.length && sorted[i].doc != NO_MORE_DOCS; i++) {
+                bound += sorted[i].upperBound;
+                if (bound > threshold) {
+                    pivot = i;
+                    break;
+                }
+            }
+            if (pivot < 0) {
+                break;
+            }
+            int pivotDoc = sorted[pivot].doc;
+            while (pivot + 1 < sorted.length && sorted[pivot + 1].doc == pivotDoc) {
+                pivot++;
+            }
+            double blockBound = 0;
+            for (int i = 0; i <= pivot; i++) {
+                sorted[i].shallowAdvance(pivotDoc);
+                blockBound += sorted[i].blockBound();
+            }
+            if (blockBound > threshold) {
+                if (sorted[0].doc == pivotDoc) {
+                    double score = 0;
+                    for (BlockCursor cursor : terms) {
+                        if (cursor.doc == pivotDoc) {
+                            score += cursor.tf() * cursor.idf * cursor.weight;
+                            cursor.next();
+                        }
+                    }
+                    top.offer(pivotDoc, normalize(score, pivotDoc, normType));
+                } else {
+                    for (int i = 0; i <= pivot && sorted[i].doc < pivotDoc; i++) {
+                        sorted[i].advance(pivotDoc);
+                    }
+                }
+            } else {
+                // No document before the end of the first of these blocks to end, nor
+                // before the next cursor, can beat the threshold.
+                long next = pivot + 1 < sorted.length ? sorted[pivot + 1].doc : NO_MORE_DOCS;
+                for (int i = 0; i <= pivot; i++) {
+                    next = Math.min(next, (long) sorted[i].shallowLastDocID() + 1);
+                }
+                int target = (int) Math.min(next, NO_MORE_DOCS);
+                for (int i = 0; i <= pivot; i++) {
+                    sorted[i].advance(target);
+                }
+            }
+        }
+        return top.toPostingsList(estimateMatches(N, inNone));
+    }
+}
@@ -0,0 +1,81 @@
+package ir;
+
+import java.util.ArrayList;
+
+/**
+ * Iterates over the postings list of one term in a persistent index, reading
+ * it one block at a time (see {@link PostingsBlocks}). Advancing past whole
+ * blocks uses only the block table, so the blocks are never read. When the
+ * term is intersected with a rare one, most of its postings list stays on disk.
+ */
+public class BlockTermIterator extends DocIterator {
+
+    private final Index index;
+    private final PostingsBlocks blocks;
+    private final int df;
+
+    /**
+     * The decoded block, and the position in it.
+     */
+    private int block = -1;
+    private PostingsList postings = new PostingsList();
+    private int position = -1;
+    private int doc = -1;
+
+    public BlockTermIterator(Index index, PostingsBlocks blocks, int df) {
+        this.index = index;
+        this.blocks = blocks;
+        this.df = df;
+    }
+
+    public int docID() {
+        return doc;
+    }
+
+    public int nextDoc() {
+        position++;
+        if (position < postings.size()) {
+            return doc = postings.get(position).docID;
+        }
+        return load(block + 1);
+    }
+
+    public int advance(int target) {
+        if (doc >= target) {
+            return doc;
+        }
+        if (block < 0 || blocks.lastDocIDs[block] < target) {
+            int b = blocks.find(block + 1, target);
+            if (load(b) == NO_MORE_DOCS) {
+                return doc;
+            }
+        }
+        position = postings.seek(Math.max(position, 0), target);
+        return doc = position < postings.size() ? postings.get(position).docID : NO_MORE_DOCS;
+    }
+
+    /**
+     * Decodes a block and moves to its first posting.
+     */
+    private int load(int b) {
+        block = b;
+        position = 0;
+        postings = b < blocks.size() ? index.readBlock(blocks, b) : new PostingsList();
+        if (postings.size() == 0) {
+            return doc = NO_MORE_DOCS;
+        }
+        return doc = postings.get(0).docID;
+    }
+
+    public double score() {
+        return postings.get(position).score;
+    }
+
+    public ArrayList<Integer> positions() {
+        return postings.get(position).offsets;
+    }
+
+    public long cost() {
+        return df;
+    }
+}
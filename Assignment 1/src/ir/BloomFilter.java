@@ -0,0 +1,131 @@
+package ir;
+
+import java.io.*;
+import java.util.Collection;
+
+/**
+ * A Bloom filter over a set of terms. It answers "definitely not present"
+ * or "possibly present", the latter wrongly with a configurable probability.
+ * <p>
+ * The k bit positions of a term are derived from one 64-bit FNV-1a hash by
+ * double hashing (g_i = h1 + i * h2), which behaves like k independent hashes.
+ */
+public class BloomFilter {
+
+    /**
+     * The bit array.
+     */
+    private final long[] bits;
+
+    /**
+     * The number of bits in the filter.
+     */
+    private final long numBits;
+
+    /**
+     * The number of bits set per term.
+     */
+    private final int numHashes;
+
+
+    /**
+     * Creates a filter sized for <code>expectedTerms</code> terms and the given
+     * false positive rate, which must be between 0 and 1 (exclusive).
+     */
+    public BloomFilter(int expectedTerms, double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        int n = Math.max(1, expectedTerms);
+        double ln2 = Math.log(2);
+        numBits = Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2)));
+        numHashes = Math.max(1, (int) Math.round((double) numBits / n * ln2));
+        bits = new long[(int) ((numBits + 63) / 64)];
+    }
+
+    private BloomFilter(long numBits, int numHashes, long[] bits) {
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        this.bits = bits;
+    }
+
+    /**
+     * Creates a filter containing all the given terms.
+     */
+    public static BloomFilter of(Collection<String> terms, double falsePositiveRate) {
+        BloomFilter filter = new BloomFilter(terms.size(), falsePositiveRate);
+        for (String term : terms) {
+            filter.add(term);
+        }
+        return filter;
+    }
+
+    /**
+     * Adds a term to the filter.
+     */
+    public void add(String term) {
+        long hash = hash(term);
+        long h1 = hash >>> 32;
+        long h2 = (hash & 0xFFFFFFFFL) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns false if the term is certainly not in the filter, true if it might be.
+     */
+    public boolean mightContain(String term) {
+        long hash = hash(term);
+        long h1 = hash >>> 32;
+        long h2 = (hash & 0xFFFFFFFFL) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the characters of a term.
+     */
+    private static long hash(String term) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            hash ^= term.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Writes the filter to file.
+     */
+    public void write(String fname) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname)))) {
+            out.writeLong(numBits);
+            out.writeInt(numHashes);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    /**
+     * Reads a filter from file.
+     */
+    public static BloomFilter read(String fname) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fname)))) {
+            long numBits = in.readLong();
+            int numHashes = in.readInt();
+            long[] bits = new long[(int) ((numBits + 63) / 64)];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new BloomFilter(numBits, numHashes, bits);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ir;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lets a search be stopped from another thread, e.g. when the user asks a
+ * new query in the GUI before the last one is done.
+ * <p>
+ * Cancelling is cooperative: Searcher.search makes the token the current
+ * one of its thread, and the long loops of the evaluation call
+ * {@link #check}, which throws a CancellationException once the token is
+ * cancelled. The thread is never interrupted, because an interrupt during a
+ * read closes the FileChannel of the persistent index for every other
+ * search too (ClosedByInterruptException).
+ */
+public class CancellationToken {
+
+    /**
+     * The token of the searches which cannot be cancelled.
+     */
+    public static final CancellationToken NONE = new CancellationToken();
+
+    /**
+     * How many iterations the loops over postings go between two checks.
+     */
+    static final int CHECK_INTERVAL = 1024;
+
+    private static final ThreadLocal<CancellationToken> CURRENT = new ThreadLocal<>();
+
+    private volatile boolean cancelled = false;
+
+
+    public void cancel() {
+        if (this != NONE) {
+            cancelled = true;
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throws a CancellationException if the token has been cancelled.
+     */
+    public void check() {
+        if (cancelled) {
+            throw new CancellationException("The search was cancelled");
+        }
+    }
+
+    /**
+     * Checks the token once every CHECK_INTERVAL iterations of a loop.
+     */
+    public void check(int iteration) {
+        if ((iteration & (CHECK_INTERVAL - 1)) == 0) {
+            check();
+        }
+    }
+
+    /**
+     * The token of the search running on this thread, or NONE.
+     */
+    static CancellationToken current() {
+        CancellationToken token = CURRENT.get();
+        return token == null ? NONE : token;
+    }
+
+    /**
+     * Makes this the token of the searches on this thread, and returns the
+     * one to restore when the search is done.
+     */
+    CancellationToken makeCurrent() {
+        CancellationToken previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    static void restore(CancellationToken previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ir;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The champion list of one term: the documents in its postings list with
+ * the highest term frequencies relative to their lengths, in docID order.
+ * Ranking by tf / length rather than by tf alone picks the documents the
+ * normalized tf-idf scores favour, instead of the longest ones. Only terms
+ * with more postings than {@link #length} get one; the postings list of any
+ * other term is short enough to be read whole.
+ * <p>
+ * Scoring only the champions of the query terms gives approximate top
+ * results at a cost which does not grow with the length of the postings
+ * lists (see {@link PruningType#CHAMPION_LISTS}).
+ */
+public class ChampionList {
+
+    /**
+     * The number of documents in a champion list, used when the index is committed.
+     */
+    public static int length = 50;
+
+    final int[] docIDs;
+    final int[] tfs;
+
+
+    private ChampionList(int n) {
+        docIDs = new int[n];
+        tfs = new int[n];
+    }
+
+    public int size() {
+        return docIDs.length;
+    }
+
+    /**
+     * Selects the <code>r</code> postings with the highest tf / length, the
+     * lowest docIDs first among equal ones. A document without a length
+     * counts as one word long.
+     *
+     * @return the champion list, or null if the postings list has at most r postings
+     */
+    public static ChampionList of(PostingsList list, int r, Map<Integer, Integer> docLengths) {
+        if (list.size() <= r) {
+            return null;
+        }
+        Integer[] order = new Integer[list.size()];
+        double[] weights = new double[list.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            weights[i] = list.get(i).score / docLengths.getOrDefault(list.get(i).docID, 1);
+        }
+        // Postings are in docID order, so a stable sort keeps the lowest docIDs first.
+        Arrays.sort(order, (a, b) -> Double.compare(weights[b], weights[a]));
+        int[] champions = new int[r];
+        for (int i = 0; i < r; i++) {
+            champions[i] = order[i];
+        }
+        Arrays.sort(champions);
+        ChampionList championList = new ChampionList(r);
+        for (int i = 0; i < r; i++) {
+            championList.docIDs[i] = list.get(champions[i]).docID;
+            championList.tfs[i] = (int) list.get(champions[i]).score;
+        }
+        return championList;
+    }
+
+    /**
+     * Writes the champion list.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size());
+        for (int i = 0; i < size(); i++) {
+            out.writeInt(docIDs[i]);
+            out.writeInt(tfs[i]);
+        }
+    }
+
+    /**
+     * Reads a champion list written by {@link #write}.
+     */
+    public static ChampionList read(DataInput in) throws IOException {
+        ChampionList championList = new ChampionList(in.readInt());
+        for (int i = 0; i < championList.size(); i++) {
+            championList.docIDs[i] = in.readInt();
+            championList.tfs[i] = in.readInt();
+        }
+        return championList;
+    }
+}
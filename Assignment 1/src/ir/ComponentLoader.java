@@ -0,0 +1,145 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Loads the components of the search engine at startup.
+ * <p>
+ * Components which do not depend on each other are submitted and read in
+ * parallel; {@link #await()} waits until all of them are done. Expensive
+ * components which are rarely needed are registered as {@link Lazy} and only
+ * read the first time they are used. The time taken to load every component
+ * is reported on standard error.
+ */
+public class ComponentLoader {
+
+    /**
+     * A loading step which produces no value.
+     */
+    public interface Step {
+        void run() throws Exception;
+    }
+
+    /**
+     * The threads reading the submitted components.
+     */
+    private final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "component-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Names and results of the submitted components.
+     */
+    private final ArrayList<String> names = new ArrayList<>();
+    private final ArrayList<Future<?>> futures = new ArrayList<>();
+
+    /**
+     * When the loader was created, to report the total startup time.
+     */
+    private final long startTime = System.nanoTime();
+
+
+    /**
+     * Starts loading a component in the background.
+     */
+    public <T> Future<T> submit(String name, Callable<T> component) {
+        Future<T> future = executor.submit(() -> timed(name, component));
+        names.add(name);
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * Starts running a loading step which produces no value in the background.
+     */
+    public Future<Object> run(String name, Step step) {
+        return submit(name, () -> {
+            step.run();
+            return null;
+        });
+    }
+
+    /**
+     * Registers a component which is only loaded on its first use.
+     */
+    public <T> Lazy<T> lazy(String name, Callable<T> component) {
+        return new Lazy<>(name, component);
+    }
+
+    /**
+     * Waits until all submitted components are loaded. A component which
+     * failed to load is reported, but does not stop the others.
+     */
+    public void await() {
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                System.err.println("Failed to load " + names.get(i));
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        executor.shutdown();
+        System.err.printf("Startup took %.3f s%n", (System.nanoTime() - startTime) / 1e9);
+    }
+
+    /**
+     * Loads a component and reports how long it took.
+     */
+    private static <T> T timed(String name, Callable<T> component) throws Exception {
+        long start = System.nanoTime();
+        T value = component.call();
+        System.err.printf("Loaded %s in %.3f s%n", name, (System.nanoTime() - start) / 1e9);
+        return value;
+    }
+
+
+    /**
+     * A component which is loaded on the thread that first asks for it.
+     * Later calls return the same instance.
+     */
+    public static class Lazy<T> implements Supplier<T> {
+        private final String name;
+        private Callable<T> component;
+        private volatile T value;
+
+        Lazy(String name, Callable<T> component) {
+            this.name = name;
+            this.component = component;
+        }
+
+        /**
+         * Returns true if the component has been loaded already.
+         */
+        public boolean isLoaded() {
+            return value != null;
+        }
+
+        public T get() {
+            T result = value;
+            if (result == null) {
+                synchronized (this) {
+                    result = value;
+                    if (result == null) {
+                        try {
+                            result = timed(name, component);
+                        } catch (Exception e) {
+                            throw new IllegalStateException("Failed to load " + name, e);
+                        }
+                        value = result;
+                        component = null;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A node in a document-at-a-time query evaluation tree.
+ * <p>
+ * An iterator steps through the documents matching its subquery in
+ * increasing docID order. Leaves iterate over the postings list of one term
+ * ({@link TermIterator}); inner nodes combine their children as they go
+ * ({@link AndIterator}, {@link OrIterator}, {@link PhraseIterator},
+ * {@link NotIterator}), so a query is answered in one streaming pass over the
+ * postings lists without building any intermediate lists. A caller only
+ * interested in the first few results can simply stop iterating.
+ */
+public abstract class DocIterator {
+
+    /**
+     * The docID of an iterator which has run past its last document.
+     */
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /**
+     * The current document, -1 before the first call to nextDoc or advance,
+     * NO_MORE_DOCS after the last document.
+     */
+    public abstract int docID();
+
+    /**
+     * Moves to the next matching document and returns it.
+     */
+    public abstract int nextDoc();
+
+    /**
+     * Moves to the first matching document at or after <code>target</code>
+     * and returns it. Does not move if the current document is at or after
+     * <code>target</code> already.
+     */
+    public abstract int advance(int target);
+
+    /**
+     * The score of the current document: the number of occurrences of the
+     * terms, or of the phrase, in it.
+     */
+    public abstract double score();
+
+    /**
+     * The positions in the current document where the subquery matches, in
+     * increasing order. The list must not be modified.
+     */
+    public abstract ArrayList<Integer> positions();
+
+    /**
+     * An estimate of the number of documents the iterator will visit.
+     */
+    public abstract long cost();
+
+
+    /**
+     * Runs an iterator to the end and returns the matching documents.
+     */
+    public static PostingsList collect(DocIterator iterator) {
+        PostingsList result = new PostingsList();
+        CancellationToken cancellation = CancellationToken.current();
+        for (int doc = iterator.nextDoc(); doc != NO_MORE_DOCS; doc = iterator.nextDoc()) {
+            cancellation.check(result.size());
+            result.add(new PostingsEntry(doc, new ArrayList<>(iterator.positions()), iterator.score()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns an iterator over the postings list of a word, or null if the
+     * word is not in the index. A long list in a persistent index is read
+     * block by block, as the iterator gets to the blocks.
+     */
+    public static DocIterator forWord(Index index, String word) {
+        TermStats stats = index.getTermStats(word);
+        PostingsBlocks blocks = stats == null ? null : index.getPostingsBlocks(word);
+        if (blocks != null) {
+            return new BlockTermIterator(index, blocks, stats.df);
+        }
+        PostingsList postings = index.getPostings(word);
+        return postings == null ? null : new TermIterator(postings);
+    }
+
+    /**
+     * Merges sorted position lists into one sorted list.
+     */
+    static ArrayList<Integer> mergePositions(List<? extends DocIterator> iterators) {
+        if (iterators.size() == 1) {
+            return iterators.getFirst().positions();
+        }
+        ArrayList<Integer> merged = new ArrayList<>();
+        for (DocIterator iterator : iterators) {
+            ArrayList<Integer> positions = iterator.positions();
+            ArrayList<Integer> result = new ArrayList<>(merged.size() + positions.size());
+            int i = 0;
+            int j = 0;
+            while (i < merged.size() && j < positions.size()) {
+                result.add(merged.get(i) <= positions.get(j) ? merged.get(i++) : positions.get(j++));
+            }
+            while (i < merged.size()) {
+                result.add(merged.get(i++));
+            }
+            while (j < positions.size()) {
+                result.add(positions.get(j++));
+            }
+            merged = result;
+        }
+        return merged;
+    }
+}
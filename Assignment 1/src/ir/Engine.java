@@ -8,7 +8,10 @@
 package ir;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.File;
 
 /**
@@ -42,6 +45,29 @@ public class Engine {
     KGramIndex kgIndex = new KGramIndex(2);
     String kgIndexFile = "../../indexDavis/kgIndex";
 
+    /**
+     * The k-gram index as read from disk, only loaded on first use
+     * unless we are indexing.
+     */
+    ComponentLoader.Lazy<KGramIndex> kgIndexLoader;
+
+    /**
+     * Index of frequent word pairs for phrase queries. It is only built when
+     * a minimum document frequency for the pairs is given with -bw, and
+     * otherwise read from disk on first use, if it is there. A persistent
+     * index writes it into its generations, so the file is only used along
+     * with a HashedIndex.
+     */
+    BiwordIndex biwordIndex = null;
+    int biwordMinDocumentFrequency = 0;
+    String biwordIndexFile = "../../indexDavis/biwordIndex";
+
+    /**
+     * Binary snapshot of a main-memory HashedIndex, so that it does not
+     * have to be rebuilt on every start.
+     */
+    String snapshotFile = PersistentHashedIndex.INDEX_DIR + "/hashedIndex";
+
     /**
      * Spell checker
      */
@@ -60,9 +86,13 @@ public class Engine {
     ArrayList<String> dirNames = new ArrayList<>();
 
     /**
-     * Lock to prevent simultaneous access to the index.
+     * Lock to prevent searching while the index is being loaded, or while
+     * what is searched changes. Searches only take the read lock, so any
+     * number of them run at the same time. An index which is searchable
+     * while indexing only takes the write lock to publish a new generation;
+     * any other index holds it for the whole indexing run.
      */
-    Object indexLock = new Object();
+    ReadWriteLock indexLock = new ReentrantReadWriteLock();
 
     /**
      * The patterns matching non-standard words (e-mail addresses, etc.)
@@ -84,6 +114,29 @@ public class Engine {
      */
     boolean is_indexing = true;
 
+    /**
+     * Runs the engine without the GUI, with -headless, or when it serves
+     * searches over HTTP.
+     */
+    boolean headless = false;
+
+    /**
+     * The port of the HTTP search server, given with -http, or -1 if there
+     * is no server.
+     */
+    int serverPort = -1;
+
+    /**
+     * The HTTP search server, or null if the GUI is used.
+     */
+    SearchServer server;
+
+    /**
+     * The file the metrics are written to when the engine exits, given
+     * with -metrics ("-" for stdout), or null.
+     */
+    String metricsFile = null;
+
 
     /* ----------------------------------------------- */
 
@@ -94,36 +147,144 @@ public class Engine {
      */
     public Engine(String[] args) {
         decodeArgs(args);
-        File file = new File(kgIndexFile);
-        if (file.exists()) {
-            kgIndex = kgIndex.read(kgIndexFile);
+        if (metricsFile != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Metrics.write(metricsFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        /*
+         *   The parts of the index are read in parallel while the GUI is
+         *   being built. The k-gram index and the link graph for HITS are
+         *   only read when a query first needs them.
+         */
+        ComponentLoader loader = new ComponentLoader();
+        index.readComponents(loader);
+        if (!is_indexing && index instanceof HashedIndex && new File(snapshotFile).exists()) {
+            loader.run("index snapshot", () -> {
+                ((HashedIndex) index).load(snapshotFile);
+                index.readEuclideanLengths(Searcher.euclideanLengths);
+            });
+        }
+        KGramIndex emptyKgIndex = kgIndex;
+        kgIndexLoader = loader.lazy("k-gram index", () -> new File(kgIndexFile).exists() ? emptyKgIndex.read(kgIndexFile) : emptyKgIndex);
+        boolean searchableWhileIndexing = is_indexing && index.isSearchableWhileIndexing();
+        if (searchableWhileIndexing) {
+            // The k-gram index on disk is searched until the new one is built.
+            kgIndex = new KGramIndex(emptyKgIndex.getK());
+        } else if (is_indexing) {
+            kgIndex = kgIndexLoader.get();
+        }
+        if (index instanceof PersistentHashedIndex) {
+            ((PersistentHashedIndex) index).publishLock = indexLock.writeLock();
         }
         indexer = new Indexer(index, kgIndex, patterns_file);
-        searcher = new Searcher(index, kgIndex);
-        speller = new SpellChecker(index, kgIndex);
-        gui = new SearchGUI(this);
-        gui.init();
+        searcher = new Searcher(index, kgIndexLoader, loader.lazy("HITS link graph", () -> new HITSRanker(Searcher.LINKS_FILE, Searcher.TITLES_FILE, index)));
+        if (index instanceof PersistentHashedIndex) {
+            searcher.biwordIndex = ((PersistentHashedIndex) index)::getBiwordIndex;
+        } else if (!is_indexing) {
+            searcher.biwordIndex = loader.lazy("biword index", () -> new BiwordIndex(0).read(biwordIndexFile));
+        }
+        if (is_indexing && biwordMinDocumentFrequency > 0) {
+            BiwordIndex built = new BiwordIndex(biwordMinDocumentFrequency);
+            biwordIndex = built;
+            indexer.biwordIndex = built;
+            if (index instanceof PersistentHashedIndex) {
+                ((PersistentHashedIndex) index).biwordIndex = built;
+            } else {
+                searcher.biwordIndex = () -> built;
+            }
+        }
+        speller = new SpellChecker(index, kgIndexLoader);
+        // Searches from the GUI take the read lock, so a query typed while
+        // the components are still being read waits for them.
+        indexLock.writeLock().lock();
+        try {
+            if (!headless) {
+                gui = new SearchGUI(this);
+                gui.init();
+            }
+            loader.await();
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        System.err.println("Ready to receive queries!");
+        if (serverPort >= 0) {
+            try {
+                server = new SearchServer(this, serverPort);
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
         /*
          *   Calls the indexer to index the chosen directory structure.
-         *   Access to the index is synchronized since we don't want to
-         *   search at the same time we're indexing new files (this might
-         *   corrupt the index).
+         *   An index which is searchable while indexing is searched as last
+         *   committed until the commit of the new generation. Otherwise
+         *   searches wait for indexing to finish, since the document names
+         *   and lengths (and the in-memory index) are changed in place.
          */
         if (is_indexing) {
-            synchronized (indexLock) {
-                gui.displayInfoText("Indexing, please wait...");
+            if (!searchableWhileIndexing) {
+                indexLock.writeLock().lock();
+            }
+            try {
+                displayInfoText("Indexing, please wait...");
                 long startTime = System.currentTimeMillis();
                 for (int i = 0; i < dirNames.size(); i++) {
                     File dokDir = new File(dirNames.get(i));
                     indexer.processFiles(dokDir, is_indexing);
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText(String.format("Indexing done in %.1f seconds.", elapsedTime / 1000.0));
+                displayInfoText(String.format("Indexing done in %.1f seconds.", elapsedTime / 1000.0));
                 index.cleanup();
                 kgIndex.save(kgIndexFile);
+                // A persistent index has written the biword index into the
+                // generation committed by cleanup().
+                if (!(index instanceof PersistentHashedIndex)) {
+                    if (biwordIndex != null) {
+                        biwordIndex.save(biwordIndexFile);
+                    } else {
+                        // The pairs of an earlier index would not match the new docIDs.
+                        new File(biwordIndexFile).delete();
+                        new File(biwordIndexFile + BiwordIndex.DICTIONARY_SUFFIX).delete();
+                    }
+                }
+                if (index instanceof HashedIndex) {
+                    ((HashedIndex) index).save(snapshotFile);
+                }
+                if (searchableWhileIndexing) {
+                    KGramIndex built = kgIndex;
+                    indexLock.writeLock().lock();
+                    try {
+                        searcher.kgIndex = () -> built;
+                        speller.kgIndex = () -> built;
+                    } finally {
+                        indexLock.writeLock().unlock();
+                    }
+                }
+            } finally {
+                if (!searchableWhileIndexing) {
+                    indexLock.writeLock().unlock();
+                }
             }
         } else {
-            gui.displayInfoText("Index is loaded from disk");
+            displayInfoText("Index is loaded from disk");
+        }
+    }
+
+    /**
+     * Shows a message in the GUI, or on stderr when running headless.
+     */
+    void displayInfoText(String text) {
+        if (gui != null) {
+            gui.displayInfoText(text);
+        } else {
+            System.err.println(text);
         }
     }
 
@@ -159,6 +320,43 @@ public class Engine {
             } else if ("-ni".equals(args[i])) {
                 i++;
                 is_indexing = false;
+            } else if ("-bf".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    double rate = Double.parseDouble(args[i++]);
+                    if (!(rate > 0 && rate < 1)) {
+                        System.err.println("Usage: -bf <false positive rate>, a number between 0 and 1 (exclusive)");
+                        System.exit(1);
+                    }
+                    PersistentHashedIndex.bloomFalsePositiveRate = rate;
+                }
+            } else if ("-cl".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    ChampionList.length = Integer.parseInt(args[i++]);
+                }
+            } else if ("-bw".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    biwordMinDocumentFrequency = Integer.parseInt(args[i++]);
+                }
+            } else if ("-http".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    serverPort = Integer.parseInt(args[i++]);
+                    headless = true;
+                }
+            } else if ("-headless".equals(args[i])) {
+                i++;
+                headless = true;
+            } else if ("-trace".equals(args[i])) {
+                i++;
+                QueryTrace.setEnabled(true, true);
+            } else if ("-metrics".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    metricsFile = args[i++];
+                }
             } else {
                 System.err.println("Unknown option: " + args[i]);
                 break;
@@ -0,0 +1,159 @@
+package ir;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The events the engine records in Java Flight Recorder, so that a
+ * recording shows the documents indexed, the blocks written and merged, the
+ * commits and the queries next to the GC pauses and the threads. They are
+ * in the "Search Engine" category of JDK Mission Control; on the command
+ * line, e.g.
+ * <pre>
+ * java -XX:StartFlightRecording=filename=ir.jfr -cp classes ir.Engine ...
+ * jfr print --events ir.QueryExecuted ir.jfr
+ * </pre>
+ * Every event measures its own duration. An event which is not enabled in
+ * the recording, or when nothing is recorded, costs next to nothing.
+ */
+public class Events {
+
+    @Name("ir.DocumentIndexed")
+    @Label("Document Indexed")
+    @Category({"Search Engine", "Indexing"})
+    @Description("A document tokenized and inserted into the index")
+    @StackTrace(false)
+    static class DocumentIndexed extends Event {
+        @Label("Document ID")
+        int docID;
+
+        @Label("Path")
+        String path;
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Size")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+    }
+
+    @Name("ir.BlockFlushed")
+    @Label("Block Flushed")
+    @Category({"Search Engine", "Indexing"})
+    @Description("The postings lists kept in memory written to disk as one block, to be merged")
+    @StackTrace(false)
+    static class BlockFlushed extends Event {
+        @Label("Block")
+        int block;
+
+        @Label("Terms")
+        int terms;
+
+        @Label("Size")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+
+        @Label("Collisions")
+        int collisions;
+    }
+
+    @Name("ir.MergeStarted")
+    @Label("Merge Started")
+    @Category({"Search Engine", "Indexing"})
+    @Description("Two blocks of the index started being merged into one")
+    @StackTrace(false)
+    static class MergeStarted extends Event {
+        @Label("First Block")
+        String first;
+
+        @Label("Second Block")
+        String second;
+
+        @Label("Final Merge")
+        boolean finalMerge;
+    }
+
+    @Name("ir.MergeFinished")
+    @Label("Merge Finished")
+    @Category({"Search Engine", "Indexing"})
+    @Description("Two blocks of the index merged into one")
+    @StackTrace(false)
+    static class MergeFinished extends Event {
+        @Label("First Block")
+        String first;
+
+        @Label("Second Block")
+        String second;
+
+        @Label("Merged Block")
+        String merged;
+
+        @Label("Final Merge")
+        boolean finalMerge;
+
+        @Label("Bytes Read")
+        @DataAmount(DataAmount.BYTES)
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount(DataAmount.BYTES)
+        long bytesWritten;
+    }
+
+    @Name("ir.IndexCommitted")
+    @Label("Index Committed")
+    @Category({"Search Engine", "Indexing"})
+    @Description("A new generation of the index written and made the one searched")
+    @StackTrace(false)
+    static class IndexCommitted extends Event {
+        @Label("Generation")
+        long generation;
+
+        @Label("Terms")
+        int terms;
+
+        @Label("Documents")
+        int documents;
+
+        @Label("Data Size")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+
+        @Label("Collisions")
+        int collisions;
+    }
+
+    @Name("ir.QueryExecuted")
+    @Label("Query Executed")
+    @Category({"Search Engine", "Search"})
+    @Description("A query searched by the Searcher")
+    @StackTrace(false)
+    static class QueryExecuted extends Event {
+        @Label("Query")
+        String query;
+
+        @Label("Query Type")
+        String queryType;
+
+        @Label("Ranking Type")
+        String rankingType;
+
+        @Label("Results Asked For")
+        int k;
+
+        @Label("Results")
+        int results;
+
+        @Label("From Cache")
+        boolean cached;
+
+        @Label("Cancelled")
+        boolean cancelled;
+    }
+}
@@ -54,14 +54,21 @@ public class HITSRanker {
     HashMap<Integer, ArrayList<Integer>> links = new HashMap<Integer, ArrayList<Integer>>();
 
     /**
-     * Sparse vector containing hub scores
+     * The hub and authority scores of the pages in a base set. They are
+     * computed for every query, so the ranker itself only holds the graph
+     * and can rank any number of queries at the same time.
      */
-    HashMap<Integer, Double> hubs;
-
-    /**
-     * Sparse vector containing authority scores
-     */
-    HashMap<Integer, Double> authorities;
+    static class Scores {
+        /**
+         * Sparse vector containing hub scores
+         */
+        final HashMap<Integer, Double> hubs = new HashMap<>();
+
+        /**
+         * Sparse vector containing authority scores
+         */
+        final HashMap<Integer, Double> authorities = new HashMap<>();
+    }
 
 
     /* --------------------------------------------- */
@@ -161,13 +168,16 @@ public class HITSRanker {
      * Perform HITS iterations until convergence
      *
      * @param titles The titles of the documents in the root set
+     * @return The hub and authority scores of the base set
      */
-    private void iterate(String[] titles) {
+    private Scores iterate(String[] titles) {
         //
         // YOUR CODE HERE
         //
 
-        // Computing the base set
+        // Computing the base set. The search is checked for cancellation
+        // once per document, since every step goes through the base set.
+        CancellationToken cancellation = CancellationToken.current();
         String[] baseSet = new String[0];
         for (String title : titles) {
             baseSet = Arrays.copyOf(baseSet, baseSet.length + 1);
@@ -175,6 +185,7 @@ public class HITSRanker {
         }
         // Adding the document that are linked to the root set
         for (String title : titles) {
+            cancellation.check();
             int docId = titleToId.get(title);
             for (int link : links.get(docId)) {
                 if (!Arrays.asList(baseSet).contains(idToTitle.get(link))) {
@@ -185,6 +196,7 @@ public class HITSRanker {
         }
         // Adding the document that are linked from the root set
         for (String title : titles) {
+            cancellation.check();
             int docId = titleToId.get(title);
             for (Map.Entry<Integer, ArrayList<Integer>> entry : links.entrySet()) {
                 if (entry.getValue().contains(docId)) {
@@ -196,8 +208,9 @@ public class HITSRanker {
             }
         }
 
-        hubs = new HashMap<>();
-        authorities = new HashMap<>();
+        Scores scores = new Scores();
+        HashMap<Integer, Double> hubs = scores.hubs;
+        HashMap<Integer, Double> authorities = scores.authorities;
 
         for (String title : baseSet) {
             hubs.put(titleToId.get(title), 1.0);
@@ -212,6 +225,7 @@ public class HITSRanker {
             boolean converged = true;
 
             for (String title : baseSet) {
+                cancellation.check();
                 int docId = titleToId.get(title);
                 double hub = 0;
                 double authority = 0;
@@ -257,6 +271,7 @@ public class HITSRanker {
                 break;
             }
         }
+        return scores;
     }
 
 
@@ -275,10 +290,10 @@ public class HITSRanker {
         for (int i = 0; i < post.size(); i++) {
             titles[i] = getFileName(index.docNames.get(post.get(i).docID));
         }
-        iterate(titles);
+        Scores subgraph = iterate(titles);
         HashMap<Integer, Double> scores = new HashMap<>();
         for (int i = 0; i < post.size(); i++) {
-            scores.put(post.get(i).docID, alpha * hubs.get(titleToId.get(getFileName(index.docNames.get(post.get(i).docID)))) + beta * authorities.get(titleToId.get(getFileName(index.docNames.get(post.get(i).docID)))));
+            scores.put(post.get(i).docID, alpha * subgraph.hubs.get(titleToId.get(getFileName(index.docNames.get(post.get(i).docID)))) + beta * subgraph.authorities.get(titleToId.get(getFileName(index.docNames.get(post.get(i).docID)))));
         }
         scores = sortHashMapByValue(scores);
         PostingsList ranked = new PostingsList();
@@ -344,9 +359,9 @@ public class HITSRanker {
      * authorities_top_30.txt with documents containing top 30 authority scores
      */
     void rank() {
-        iterate(titleToId.keySet().toArray(new String[0]));
-        HashMap<Integer, Double> sortedHubs = sortHashMapByValue(hubs);
-        HashMap<Integer, Double> sortedAuthorities = sortHashMapByValue(authorities);
+        Scores scores = iterate(titleToId.keySet().toArray(new String[0]));
+        HashMap<Integer, Double> sortedHubs = sortHashMapByValue(scores.hubs);
+        HashMap<Integer, Double> sortedAuthorities = sortHashMapByValue(scores.authorities);
         writeToFile(sortedHubs, SAVING_DIR + "hubs_top_30.txt", 30);
         writeToFile(sortedAuthorities, SAVING_DIR + "authorities_top_30.txt", 30);
     }
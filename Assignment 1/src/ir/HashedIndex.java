@@ -8,20 +8,60 @@
 
 package ir;
 
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 
 
 /**
  * Implements an inverted index as a Hashtable from words to PostingsLists.
+ * <p>
+ * The index can be saved to a compact binary snapshot and loaded from it
+ * again, so that a restart does not need to tokenize the corpus anew.
  */
 public class HashedIndex implements Index {
 
+    /**
+     * Identifies snapshot files ("IRHX") and the version of their layout.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x49524858;
+    private static final int SNAPSHOT_VERSION = 1;
+
 
     /**
      * The index as a hashtable.
      */
     private final HashMap<String, PostingsList> index = new HashMap<>();
 
+    /**
+     * The Euclidean lengths of the documents, computed after indexing.
+     */
+    private final HashMap<Integer, Double> euclideanLengths = new HashMap<>();
+
+    /**
+     * The statistics of every term, computed after indexing.
+     */
+    private final HashMap<String, TermStats> termStats = new HashMap<>();
+
+    /**
+     * The champion lists of the long postings lists, computed after indexing.
+     */
+    private final HashMap<String, ChampionList> championLists = new HashMap<>();
+
+    /**
+     * Counts the changes to the index: every insert, and every time the
+     * term statistics are computed.
+     */
+    private long generation = 0;
+
 
     /**
      * Inserts this token in the hashtable.
@@ -30,6 +70,7 @@ public class HashedIndex implements Index {
         //
         // YOUR CODE HERE
         //
+        generation++;
         if (index.containsKey(token)) {
             PostingsList postingsList = index.get(token);
             if (postingsList.get(postingsList.size() - 1).docID == docID) {
@@ -54,32 +95,279 @@ public class HashedIndex implements Index {
         //
         // REPLACE THE STATEMENT BELOW WITH YOUR CODE
         //
-        return index.get(token);
+        PostingsList postings = index.get(token);
+        Metrics.increment(Metrics.Counter.INDEX_LOOKUPS);
+        QueryTrace.count(QueryTrace.Counter.PROBES, 1);
+        if (postings != null) {
+            QueryTrace.count(QueryTrace.Counter.POSTINGS_READ, postings.size());
+        }
+        return postings;
+    }
+
+
+    /**
+     * Returns the statistics of a term, or null if the term is not in the index.
+     */
+    public TermStats getTermStats(String token) {
+        return termStats.get(token);
+    }
+
+    /**
+     * The postings lists are all in memory, so there are no blocks to skip.
+     */
+    public PostingsBlocks getPostingsBlocks(String token) {
+        return null;
+    }
+
+    public PostingsList readBlock(PostingsBlocks blocks, int block) {
+        throw new UnsupportedOperationException("The postings lists of a HashedIndex have no blocks");
+    }
+
+    public ChampionList getChampionList(String token) {
+        return championLists.get(token);
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Computes the statistics and the champion list of every term.
+     */
+    private void computeTermStats() {
+        generation++;
+        termStats.clear();
+        championLists.clear();
+        for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
+            termStats.put(entry.getKey(), TermStats.of(entry.getValue(), docLengths, euclideanLengths));
+            ChampionList champions = ChampionList.of(entry.getValue(), ChampionList.length, docLengths);
+            if (champions != null) {
+                championLists.put(entry.getKey(), champions);
+            }
+        }
     }
 
 
     /**
-     * No need for cleanup in a HashedIndex.
+     * Computes the term statistics and the Euclidean lengths of the
+     * documents once indexing is done.
      */
     public void cleanup() {
+        HashMap<Integer, Double> squares = new HashMap<>();
+        int N = docNames.size();
+        for (PostingsList postingsList : index.values()) {
+            double idf = Math.log(N / (double) postingsList.size());
+            for (int i = 0; i < postingsList.size(); i++) {
+                double tf = postingsList.get(i).score;
+                squares.merge(postingsList.get(i).docID, tf * idf * tf * idf, Double::sum);
+            }
+        }
+        euclideanLengths.clear();
+        for (int docID : docNames.keySet()) {
+            euclideanLengths.put(docID, Math.sqrt(squares.getOrDefault(docID, 0.0)));
+        }
+        computeTermStats();
+        readEuclideanLengths(Searcher.euclideanLengths);
     }
 
     @Override
     public void putDocEuclideanLength(int docID) {
-        System.err.println("Error in hashed index, use persistent index.");
-        System.exit(1);
+        double length = 0;
+        int N = docNames.size();
+        for (PostingsList postingsList : index.values()) {
+            double idf = Math.log(N / (double) postingsList.size());
+            for (int i = 0; i < postingsList.size(); i++) {
+                if (postingsList.get(i).docID == docID) {
+                    double tf = postingsList.get(i).score;
+                    length += tf * idf * tf * idf;
+                }
+            }
+        }
+        euclideanLengths.put(docID, Math.sqrt(length));
     }
 
     @Override
     public double getEuclideanLength(int docID) {
-        System.err.println("Error in hashed index, use persistent index.");
-        System.exit(1);
-        return 0;
+        return euclideanLengths.getOrDefault(docID, 0.0);
     }
 
     @Override
     public void readEuclideanLengths(HashMap<Integer, Double> euclideanLengths) {
-        System.err.println("Error in hashed index, use persistent index.");
-        System.exit(1);
+        euclideanLengths.putAll(this.euclideanLengths);
+    }
+
+    /**
+     * Nothing to read, a HashedIndex is either built or loaded from a snapshot.
+     */
+    @Override
+    public void readComponents(ComponentLoader loader) {
+    }
+
+
+    // ==================================================================
+    //
+    //  Binary snapshots.
+    //
+    //  Layout: magic, version, the document table (docID, length,
+    //  Euclidean length, name), then the term table. Every term is followed
+    //  by its packed postings: the number of postings, and per posting the
+    //  docID gap, the term frequency and the offset gaps, all as varints.
+
+    /**
+     * Saves the index and the document tables to a binary snapshot. The
+     * snapshot is written to a temporary file which then replaces the old
+     * one, so a crash while saving leaves the old snapshot intact.
+     */
+    public void save(String filename) {
+        long startTime = System.currentTimeMillis();
+        File tmp = new File(filename + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(docNames.size());
+            for (Map.Entry<Integer, String> entry : docNames.entrySet()) {
+                int docID = entry.getKey();
+                out.writeInt(docID);
+                out.writeInt(docLengths.getOrDefault(docID, 0));
+                out.writeDouble(euclideanLengths.getOrDefault(docID, 0.0));
+                writeString(out, entry.getValue());
+            }
+            out.writeInt(index.size());
+            for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
+                writeString(out, entry.getKey());
+                PostingsList postingsList = entry.getValue();
+                writeVarInt(out, postingsList.size());
+                int lastDocID = 0;
+                for (int i = 0; i < postingsList.size(); i++) {
+                    PostingsEntry posting = postingsList.get(i);
+                    writeVarInt(out, posting.docID - lastDocID);
+                    lastDocID = posting.docID;
+                    writeVarInt(out, posting.offsets.size());
+                    int lastOffset = 0;
+                    for (int offset : posting.offsets) {
+                        writeVarInt(out, offset - lastOffset);
+                        lastOffset = offset;
+                    }
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), new File(filename).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+        System.err.println("Index snapshot written in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s");
+    }
+
+    /**
+     * Replaces the contents of the index with a binary snapshot, which is
+     * read through a memory mapping of the file. If the snapshot is
+     * truncated or corrupt, the index is left empty.
+     *
+     * @return true if the snapshot could be loaded
+     */
+    public boolean load(String filename) {
+        long startTime = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(new File(filename).toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                System.err.println("Index snapshot " + filename + " is too large to be mapped");
+                return false;
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != SNAPSHOT_MAGIC || in.getInt() != SNAPSHOT_VERSION) {
+                System.err.println(filename + " is not an index snapshot of this version");
+                return false;
+            }
+            clear();
+            int numDocs = in.getInt();
+            for (int i = 0; i < numDocs; i++) {
+                int docID = in.getInt();
+                docLengths.put(docID, in.getInt());
+                euclideanLengths.put(docID, in.getDouble());
+                docNames.put(docID, readString(in));
+            }
+            int numTerms = in.getInt();
+            for (int t = 0; t < numTerms; t++) {
+                String term = readString(in);
+                int size = readVarInt(in);
+                PostingsList postingsList = new PostingsList();
+                int docID = 0;
+                for (int i = 0; i < size; i++) {
+                    docID += readVarInt(in);
+                    int tf = readVarInt(in);
+                    ArrayList<Integer> offsets = new ArrayList<>(tf);
+                    int offset = 0;
+                    for (int j = 0; j < tf; j++) {
+                        offset += readVarInt(in);
+                        offsets.add(offset);
+                    }
+                    postingsList.add(new PostingsEntry(docID, offsets, tf));
+                }
+                index.put(term, postingsList);
+            }
+            computeTermStats();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (RuntimeException e) {
+            System.err.println("Index snapshot " + filename + " is corrupt: " + e);
+            clear();
+            computeTermStats();
+            return false;
+        }
+        System.err.println("Index snapshot loaded in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s");
+        return true;
+    }
+
+    /**
+     * Removes all terms and documents from the index.
+     */
+    private void clear() {
+        index.clear();
+        euclideanLengths.clear();
+        docNames.clear();
+        docLengths.clear();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
     }
 }
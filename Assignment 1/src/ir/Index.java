@@ -30,11 +30,77 @@ public interface Index {
      */
     void insert(String token, int docID, int offset);
 
+    /**
+     * Records the name and length of a document once it has been indexed.
+     */
+    default void putDocInfo(int docID, String name, int length) {
+        docNames.put(docID, name);
+        docLengths.put(docID, length);
+    }
+
+    /**
+     * Returns true if the index only searches what it has committed, so
+     * that it can be searched while documents are being indexed. Otherwise
+     * searches must wait until indexing is done.
+     */
+    default boolean isSearchableWhileIndexing() {
+        return false;
+    }
+
     /**
      * Returns the postings for a given term.
      */
     PostingsList getPostings(String token);
 
+    /**
+     * Returns the statistics of a given term without reading its postings,
+     * or null if the term is not in the index.
+     */
+    TermStats getTermStats(String token);
+
+    /**
+     * Returns the block table of the postings list of a given term, or null
+     * if the index has none for it (see {@link PostingsBlocks}).
+     */
+    PostingsBlocks getPostingsBlocks(String token);
+
+    /**
+     * Reads and decodes one block of a postings list. Never returns null: a
+     * block which cannot be read fails the query with an unchecked exception.
+     */
+    PostingsList readBlock(PostingsBlocks blocks, int block);
+
+    /**
+     * Returns the champion list of a given term, or null if its postings
+     * list is short enough not to have one (see {@link ChampionList}).
+     */
+    ChampionList getChampionList(String token);
+
+    /**
+     * Returns a number which changes whenever what is searched changes, so
+     * that results computed before can be told apart from current ones.
+     */
+    long getGeneration();
+
+    /**
+     * Makes the lookups on this thread read what is searched now until the
+     * returned pin is closed, even if a new generation of the index is
+     * committed meanwhile. Searcher.search pins the index for every query,
+     * so that all of its terms are read from the same generation.
+     */
+    default Pin pin() {
+        return () -> {
+        };
+    }
+
+    /**
+     * What is searched by one query, held until it is closed (see {@link #pin}).
+     */
+    interface Pin extends AutoCloseable {
+        @Override
+        void close();
+    }
+
     /**
      * This method is called on exit.
      */
@@ -45,5 +111,11 @@ public interface Index {
     double getEuclideanLength(int docID);
 
     void readEuclideanLengths(HashMap<Integer, Double> euclideanLengths);
+
+    /**
+     * Submits the parts of the index which are read from disk at startup
+     * to the given loader.
+     */
+    void readComponents(ComponentLoader loader);
 }
 
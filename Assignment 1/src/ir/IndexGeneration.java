@@ -0,0 +1,351 @@
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
+
+/**
+ * One committed generation of a persistent index.
+ * <p>
+ * Every commit writes all index files into a fresh directory
+ * <code>gen-N</code> below the index directory, together with a manifest
+ * holding a CRC32C checksum for every block of every file. Only then is the
+ * <code>CURRENT</code> pointer file replaced (by an atomic rename) so that it
+ * names the new generation. A crash in the middle of a commit therefore
+ * leaves the previous generation untouched and still current.
+ * <p>
+ * Checksums are verified lazily: a block of a file is checked the first time
+ * a read touches it, so opening a generation costs no more than reading the
+ * manifest. A block whose checksum does not match makes the read fail with
+ * an IOException.
+ */
+public class IndexGeneration {
+
+    /**
+     * The pointer file naming the current generation.
+     */
+    public static final String CURRENT_FNAME = "CURRENT";
+
+    /**
+     * The manifest file name
+     */
+    public static final String MANIFEST_FNAME = "manifest";
+
+    /**
+     * Generation directories are named with this prefix followed by the generation number.
+     */
+    public static final String DIR_PREFIX = "gen-";
+
+    /**
+     * Files are checksummed in blocks of this many bytes.
+     */
+    public static final int BLOCK_SIZE = 1 << 16;
+
+    /**
+     * The generation number, or -1 for an index written before generations existed.
+     */
+    final long number;
+
+    /**
+     * The directory holding the files of this generation.
+     */
+    final File dir;
+
+    /**
+     * Checksums of the files of this generation, null if there is no manifest.
+     */
+    private HashMap<String, Checksums> manifest;
+
+
+    /**
+     * The block checksums of one file, and which blocks have been verified so far.
+     */
+    private static class Checksums {
+        final long length;
+        final int[] crcs;
+
+        /**
+         * One bit for every block, set once the block has been verified.
+         */
+        final AtomicLongArray verified;
+
+        Checksums(long length, int[] crcs) {
+            this.length = length;
+            this.crcs = crcs;
+            this.verified = new AtomicLongArray((crcs.length + Long.SIZE - 1) / Long.SIZE);
+        }
+
+        boolean isVerified(int block) {
+            return (verified.get(block / Long.SIZE) & (1L << block)) != 0;
+        }
+
+        void setVerified(int block) {
+            verified.getAndAccumulate(block / Long.SIZE, 1L << block, (bits, bit) -> bits | bit);
+        }
+    }
+
+
+    private IndexGeneration(long number, File dir) {
+        this.number = number;
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the current generation of the index in <code>indexDir</code>,
+     * or null if nothing has been committed yet.
+     * <p>
+     * An index written before generations existed (files directly in the index
+     * directory, no pointer file) is returned as generation -1 without checksums.
+     */
+    public static IndexGeneration current(String indexDir) throws IOException {
+        File pointer = new File(indexDir, CURRENT_FNAME);
+        if (!pointer.exists()) {
+            if (new File(indexDir, PersistentHashedIndex.DICTIONARY_FNAME).exists()) {
+                return new IndexGeneration(-1, new File(indexDir));
+            }
+            return null;
+        }
+        String name = new String(Files.readAllBytes(pointer.toPath())).trim();
+        IndexGeneration generation = new IndexGeneration(Long.parseLong(name.substring(DIR_PREFIX.length())), new File(indexDir, name));
+        generation.readManifest();
+        return generation;
+    }
+
+    /**
+     * Creates the directory for the next generation of the index in <code>indexDir</code>.
+     * Directories left behind by commits that never completed are removed.
+     */
+    public static IndexGeneration create(String indexDir) throws IOException {
+        IndexGeneration current = current(indexDir);
+        long next = current == null ? 0 : current.number + 1;
+        File[] dirs = new File(indexDir).listFiles((d, name) -> name.startsWith(DIR_PREFIX));
+        if (dirs != null) {
+            for (File d : dirs) {
+                if (parseNumber(d.getName()) >= next) {
+                    deleteDir(d);
+                }
+            }
+        }
+        File dir = new File(indexDir, DIR_PREFIX + next);
+        if (!dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        IndexGeneration generation = new IndexGeneration(next, dir);
+        generation.manifest = new HashMap<>();
+        return generation;
+    }
+
+    /**
+     * Returns the path of a file in this generation.
+     */
+    public String path(String fname) {
+        return new File(dir, fname).getPath();
+    }
+
+    /**
+     * Returns true if this generation contains the given file.
+     */
+    public boolean contains(String fname) {
+        return new File(dir, fname).exists();
+    }
+
+
+    // ==================================================================
+    //
+    //  Committing a generation.
+
+    /**
+     * Computes the checksums of all files written to this generation, forces
+     * them to disk and writes the manifest.
+     */
+    public void seal() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + dir);
+        }
+        StringBuilder s = new StringBuilder();
+        s.append("generation;").append(number).append("\n");
+        s.append("blockSize;").append(BLOCK_SIZE).append("\n");
+        for (File file : files) {
+            if (file.getName().equals(MANIFEST_FNAME)) {
+                continue;
+            }
+            int[] crcs;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                crcs = checksum(channel);
+                channel.force(true);
+            }
+            manifest.put(file.getName(), new Checksums(file.length(), crcs));
+            s.append("file;").append(file.getName()).append(";").append(file.length()).append(";");
+            for (int i = 0; i < crcs.length; i++) {
+                s.append(i == 0 ? "" : ",").append(Integer.toHexString(crcs[i]));
+            }
+            s.append("\n");
+        }
+        writeDurably(new File(dir, MANIFEST_FNAME), s.toString());
+        forceDir(dir);
+    }
+
+    /**
+     * Atomically makes this generation the current one, and removes the
+     * generations older than the one it replaces.
+     */
+    public void publish() throws IOException {
+        File indexDir = dir.getParentFile();
+        File tmp = new File(indexDir, CURRENT_FNAME + ".tmp");
+        writeDurably(tmp, dir.getName() + "\n");
+        Files.move(tmp.toPath(), new File(indexDir, CURRENT_FNAME).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDir(indexDir);
+        File[] dirs = indexDir.listFiles((d, name) -> name.startsWith(DIR_PREFIX));
+        if (dirs != null) {
+            for (File d : dirs) {
+                if (parseNumber(d.getName()) < number - 1) {
+                    deleteDir(d);
+                }
+            }
+        }
+    }
+
+
+    // ==================================================================
+    //
+    //  Verifying a generation.
+
+    /**
+     * Verifies the checksums of all blocks of <code>file</code> overlapping the
+     * byte range [ptr, ptr + size). Blocks already verified are not read again.
+     * The blocks are read with positional reads, so the channel may be shared
+     * by threads reading it at the same time. No lock is taken: two threads
+     * reading the same block for the first time may both verify it.
+     *
+     * @throws IOException if a block cannot be read or its checksum does not match
+     */
+    public void verify(String fname, FileChannel channel, long ptr, long size) throws IOException {
+        if (manifest == null) {
+            return;
+        }
+        Checksums checksums = manifest.get(fname);
+        if (checksums == null) {
+            throw new FileNotFoundException("File " + fname + " is not in the manifest of " + dir);
+        }
+        int first = (int) (ptr / BLOCK_SIZE);
+        int last = (int) (Math.max(ptr, ptr + size - 1) / BLOCK_SIZE);
+        for (int block = first; block <= last && block < checksums.crcs.length; block++) {
+            if (checksums.isVerified(block)) {
+                continue;
+            }
+            long start = (long) block * BLOCK_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BLOCK_SIZE, checksums.length - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0) {
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.array(), 0, buffer.position());
+            if ((int) crc.getValue() != checksums.crcs[block] || buffer.position() != buffer.capacity()) {
+                throw new IOException("Checksum mismatch in block " + block + " of " + path(fname));
+            }
+            checksums.setVerified(block);
+        }
+    }
+
+    /**
+     * Verifies the checksums of a whole file. Used for the small files which
+     * are read completely at startup.
+     */
+    public void verifyFile(String fname) throws IOException {
+        if (manifest == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(path(fname)), StandardOpenOption.READ)) {
+            verify(fname, channel, 0, channel.size());
+        }
+    }
+
+    /**
+     * Reads the manifest and checks that all files it lists have the recorded lengths.
+     */
+    private void readManifest() throws IOException {
+        manifest = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(new File(dir, MANIFEST_FNAME)))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] data = line.split(";");
+                if (data[0].equals("blockSize") && Integer.parseInt(data[1]) != BLOCK_SIZE) {
+                    throw new IOException("Unsupported block size in manifest of " + dir);
+                }
+                if (!data[0].equals("file")) {
+                    continue;
+                }
+                long length = Long.parseLong(data[2]);
+                String[] hex = data.length > 3 ? data[3].split(",") : new String[0];
+                int[] crcs = new int[hex.length];
+                for (int i = 0; i < hex.length; i++) {
+                    crcs[i] = Integer.parseUnsignedInt(hex[i], 16);
+                }
+                if (new File(dir, data[1]).length() != length) {
+                    throw new IOException("File " + data[1] + " of " + dir + " has the wrong length");
+                }
+                manifest.put(data[1], new Checksums(length, crcs));
+            }
+        }
+    }
+
+
+    // ==================================================================
+
+    private static int[] checksum(FileChannel channel) throws IOException {
+        long length = channel.size();
+        int[] crcs = new int[(int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE)];
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        for (int block = 0; block < crcs.length; block++) {
+            buffer.clear();
+            long start = (long) block * BLOCK_SIZE;
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0) {
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.array(), 0, buffer.position());
+            crcs[block] = (int) crc.getValue();
+        }
+        return crcs;
+    }
+
+    private static void writeDurably(File file, String contents) throws IOException {
+        try (FileOutputStream fout = new FileOutputStream(file)) {
+            fout.write(contents.getBytes());
+            fout.getFD().sync();
+        }
+    }
+
+    /**
+     * Forces a directory entry to disk. Not supported on every platform, in
+     * which case the rename is only as durable as the file system makes it.
+     */
+    private static void forceDir(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static long parseNumber(String dirName) {
+        try {
+            return Long.parseLong(dirName.substring(DIR_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
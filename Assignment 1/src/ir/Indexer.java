@@ -27,6 +27,11 @@ public class Indexer {
      */
     KGramIndex kgIndex;
 
+    /**
+     * Index of word pairs to be built up by this Indexer, if any
+     */
+    BiwordIndex biwordIndex;
+
     /**
      * The next docID to be generated.
      */
@@ -79,6 +84,8 @@ public class Indexer {
                     // First register the document and get a docID
                     int docID = generateDocID();
                     if (docID % 1000 == 0) System.err.println("Indexed " + docID + " files");
+                    Events.DocumentIndexed event = new Events.DocumentIndexed();
+                    event.begin();
                     try {
                         Reader reader = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8);
                         Tokenizer tok = new Tokenizer(reader, true, false, true, patterns_file);
@@ -87,9 +94,16 @@ public class Indexer {
                             String token = tok.nextToken();
                             insertIntoIndex(docID, token, offset++);
                         }
-                        index.docNames.put(docID, f.getPath());
-                        index.docLengths.put(docID, offset);
+                        index.putDocInfo(docID, f.getPath(), offset);
                         reader.close();
+                        event.end();
+                        if (event.shouldCommit()) {
+                            event.docID = docID;
+                            event.path = f.getPath();
+                            event.tokens = offset;
+                            event.bytes = f.length();
+                            event.commit();
+                        }
                     } catch (IOException e) {
                         System.err.println("Warning: IOException during indexing.");
                     }
@@ -109,6 +123,8 @@ public class Indexer {
         index.insert(token, docID, offset);
         if (kgIndex != null)
             kgIndex.insert(token);
+        if (biwordIndex != null)
+            biwordIndex.insert(token, docID, offset);
     }
 }
 
@@ -0,0 +1,231 @@
+package ir;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the engine, kept for as long as it
+ * runs and written out in the Prometheus text format.
+ * <p>
+ * There is one histogram of the latency of Searcher.search for every query
+ * type and ranking type; the ranking type of unranked queries is "none".
+ * Cancelled searches are counted, but not in the histograms.
+ * Recording a query or counting an event never takes a lock: the counters
+ * are LongAdders and the histograms arrays of atomic longs, so the threads
+ * searching at the same time do not wait for each other.
+ * <p>
+ * The metrics are written with {@link #write}, e.g. at exit with the
+ * <code>-metrics</code> option of the Engine, or served by the HTTP server
+ * on <code>/metrics</code>.
+ */
+public class Metrics {
+
+    public enum Counter {
+        CACHE_HITS("ir_result_cache_hits_total", "Searches answered from the result cache."),
+        CACHE_MISSES("ir_result_cache_misses_total", "Searches which were evaluated."),
+        POSTINGS_BYTES_READ("ir_postings_bytes_read_total", "Bytes of postings lists read from the data file."),
+        INDEX_LOOKUPS("ir_index_lookups_total", "Postings lists looked up in the index."),
+        SPELLING_CHECKS("ir_spelling_checks_total", "Queries checked for spelling corrections."),
+        CANCELLED_SEARCHES("ir_cancelled_searches_total", "Searches cancelled before they were done.");
+
+        final String name;
+        final String help;
+
+        Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+    }
+
+    /**
+     * The quantiles written for every histogram.
+     */
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+    /**
+     * The histograms by query type and ranking type. The last ranking slot is
+     * for the queries which are not ranked.
+     */
+    private static final LatencyHistogram[][] latencies =
+            new LatencyHistogram[QueryType.values().length][RankingType.values().length + 1];
+
+    static {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        for (LatencyHistogram[] row : latencies) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] = new LatencyHistogram();
+            }
+        }
+    }
+
+
+    /**
+     * A histogram of latencies in microseconds, in the manner of
+     * HdrHistogram: the values from 2^e to 2^(e+1) are split into 16 buckets
+     * of equal width, so every value is known to within 1/16, from one
+     * microsecond up to the largest long.
+     */
+    static class LatencyHistogram {
+
+        static final int SUB_BUCKET_BITS = 4;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder sumNanos = new LongAdder();
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            counts.incrementAndGet(bucket(nanos / 1000));
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros);
+            int shift = exponent - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        /**
+         * The largest value which falls in the bucket.
+         */
+        static long highestValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+
+        /**
+         * The value below which the fraction q of the recorded values fall,
+         * in microseconds, or 0 if nothing has been recorded.
+         */
+        long quantile(double q) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            count.reset();
+            sumNanos.reset();
+        }
+    }
+
+
+    public static void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    public static void add(Counter counter, long n) {
+        counters[counter.ordinal()].add(n);
+    }
+
+    public static long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Records the latency of a search.
+     */
+    public static void recordSearch(QueryType queryType, RankingType rankingType, long nanos) {
+        histogram(queryType, rankingType).record(nanos);
+    }
+
+    static LatencyHistogram histogram(QueryType queryType, RankingType rankingType) {
+        int ranking = queryType == QueryType.RANKED_QUERY ? rankingType.ordinal() : RankingType.values().length;
+        return latencies[queryType.ordinal()][ranking];
+    }
+
+    /**
+     * Sets every counter and histogram back to zero, e.g. after warming up.
+     */
+    public static void reset() {
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
+        for (LatencyHistogram[] row : latencies) {
+            for (LatencyHistogram histogram : row) {
+                histogram.reset();
+            }
+        }
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format. The histograms are
+     * written as summaries, with the quantiles in {@link #QUANTILES}; those
+     * of the query types which have not been searched are left out.
+     */
+    public static void write(PrintStream out) {
+        out.println("# HELP ir_search_latency_seconds Time taken by Searcher.search, by query type and ranking type.");
+        out.println("# TYPE ir_search_latency_seconds summary");
+        for (QueryType queryType : QueryType.values()) {
+            for (int j = 0; j <= RankingType.values().length; j++) {
+                LatencyHistogram histogram = latencies[queryType.ordinal()][j];
+                long count = histogram.count.sum();
+                if (count == 0) {
+                    continue;
+                }
+                String ranking = j < RankingType.values().length ? RankingType.values()[j].name() : "none";
+                String labels = "type=\"" + queryType.name().toLowerCase(Locale.ROOT)
+                        + "\",ranking=\"" + ranking.toLowerCase(Locale.ROOT) + "\"";
+                for (double q : QUANTILES) {
+                    out.printf(Locale.ROOT, "ir_search_latency_seconds{%s,quantile=\"%s\"} %.6f%n",
+                            labels, q, histogram.quantile(q) / 1e6);
+                }
+                out.printf(Locale.ROOT, "ir_search_latency_seconds_sum{%s} %.6f%n", labels, histogram.sumNanos.sum() / 1e9);
+                out.printf(Locale.ROOT, "ir_search_latency_seconds_count{%s} %d%n", labels, count);
+            }
+        }
+        for (Counter counter : Counter.values()) {
+            out.println("# HELP " + counter.name + " " + counter.help);
+            out.println("# TYPE " + counter.name + " counter");
+            out.println(counter.name + " " + get(counter));
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the metrics to a file, or to stdout if the file name is "-".
+     */
+    public static void write(String fileName) throws IOException {
+        if ("-".equals(fileName)) {
+            write(System.out);
+            return;
+        }
+        try (PrintStream out = new PrintStream(new FileOutputStream(fileName), false, StandardCharsets.UTF_8)) {
+            write(out);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ir;
+
+import java.util.ArrayList;
+
+/**
+ * Matches the documents matched by one iterator but not by another.
+ */
+public class NotIterator extends DocIterator {
+
+    private final DocIterator include;
+    private final DocIterator exclude;
+
+    public NotIterator(DocIterator include, DocIterator exclude) {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    public int docID() {
+        return include.docID();
+    }
+
+    public int nextDoc() {
+        return skipExcluded(include.nextDoc());
+    }
+
+    public int advance(int target) {
+        if (include.docID() >= target) {
+            return include.docID();
+        }
+        return skipExcluded(include.advance(target));
+    }
+
+    private int skipExcluded(int doc) {
+        while (doc != NO_MORE_DOCS && exclude.advance(doc) == doc) {
+            doc = include.nextDoc();
+        }
+        return doc;
+    }
+
+    public double score() {
+        return include.score();
+    }
+
+    public ArrayList<Integer> positions() {
+        return include.positions();
+    }
+
+    public long cost() {
+        return include.cost();
+    }
+}
@@ -0,0 +1,96 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Matches the documents matched by any of its children. The children are kept
+ * in a heap by their current document, so that a wildcard term expanding to
+ * many words costs O(log n) per step.
+ */
+public class OrIterator extends DocIterator {
+
+    /**
+     * The children which are not on the current document.
+     */
+    private final PriorityQueue<DocIterator> queue = new PriorityQueue<>(Comparator.comparingInt(DocIterator::docID));
+
+    /**
+     * The children which are on the current document.
+     */
+    private final ArrayList<DocIterator> current = new ArrayList<>();
+
+    private final long cost;
+    private int doc = -1;
+
+    public OrIterator(List<DocIterator> children) {
+        current.addAll(children);
+        long cost = 0;
+        for (DocIterator child : children) {
+            cost += child.cost();
+        }
+        this.cost = cost;
+    }
+
+    public int docID() {
+        return doc;
+    }
+
+    public int nextDoc() {
+        for (DocIterator child : current) {
+            if (child.nextDoc() != NO_MORE_DOCS) {
+                queue.add(child);
+            }
+        }
+        current.clear();
+        return collectCurrent();
+    }
+
+    public int advance(int target) {
+        if (doc >= target) {
+            return doc;
+        }
+        for (DocIterator child : current) {
+            if (child.advance(target) != NO_MORE_DOCS) {
+                queue.add(child);
+            }
+        }
+        current.clear();
+        while (!queue.isEmpty() && queue.peek().docID() < target) {
+            DocIterator child = queue.poll();
+            if (child.advance(target) != NO_MORE_DOCS) {
+                queue.add(child);
+            }
+        }
+        return collectCurrent();
+    }
+
+    private int collectCurrent() {
+        if (queue.isEmpty()) {
+            return doc = NO_MORE_DOCS;
+        }
+        doc = queue.peek().docID();
+        while (!queue.isEmpty() && queue.peek().docID() == doc) {
+            current.add(queue.poll());
+        }
+        return doc;
+    }
+
+    public double score() {
+        double score = 0;
+        for (DocIterator child : current) {
+            score += child.score();
+        }
+        return score;
+    }
+
+    public ArrayList<Integer> positions() {
+        return mergePositions(current);
+    }
+
+    public long cost() {
+        return cost;
+    }
+}
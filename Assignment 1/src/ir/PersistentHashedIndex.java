@@ -9,7 +9,13 @@ package ir;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /*
@@ -21,14 +27,21 @@ import java.util.*;
  *
  *   When words are read and indexed, they are first put in an ordinary,
  *   main-memory HashMap. When all words are read, the index is committed
- *   to disk.
+ *   to disk, into a new IndexGeneration which replaces the current one
+ *   only once all of its files are written.
+ *
+ *   The current generation is searched through a Snapshot, with positional
+ *   reads, so any number of threads can search the index at the same time,
+ *   also while documents are being indexed and a new generation is being
+ *   committed.
  */
 public class PersistentHashedIndex implements Index {
 
     /**
-     * The directory where the persistent index files are stored.
+     * The directory where the persistent index files are stored. It can be
+     * changed with the system property ir.indexDir, e.g. for benchmarks.
      */
-    public static final String INDEX_DIR = "../../indexDavis"; // TODO: Change this to the path of the index directory
+    public static final String INDEX_DIR = System.getProperty("ir.indexDir", "../../indexDavis"); // TODO: Change this to the path of the index directory
 
     public static final String EUCLIDEAN_LENGTHS = "euclideanLengths";
 
@@ -52,18 +65,72 @@ public class PersistentHashedIndex implements Index {
      */
     public static final String DOCINFO_FNAME = "docInfo";
 
+    /**
+     * The term statistics file name
+     */
+    public static final String TERM_STATS_FNAME = "termStats";
+
+    /**
+     * The postings block tables file name
+     */
+    public static final String BLOCKS_FNAME = "postingsBlocks";
+
+    /**
+     * The Bloom filter file name
+     */
+    public static final String BLOOM_FILTER_FNAME = "bloomFilter";
+
+    /**
+     * The champion lists file name
+     */
+    public static final String CHAMPIONS_FNAME = "championLists";
+
+    /**
+     * The biword index file name (see {@link BiwordIndex})
+     */
+    public static final String BIWORD_FNAME = "biwordIndex";
+
+    /**
+     * False positive rate of the Bloom filter over the vocabulary, used
+     * when the index is committed.
+     */
+    public static double bloomFalsePositiveRate = 0.01;
+
     /**
      * The dictionary hash table on disk can fit this many entries.
      */
     public static final long TABLE_SIZE = 611953L;// 3500017L;// TODO: Change this to the size of the dictionary hash table
 
     /**
-     * The dictionary hash table is stored in this file.
+     * The generation of the index which is currently searched, and the
+     * components read along with it.
+     */
+    volatile Snapshot snapshot = new Snapshot(null, null, null);
+
+    /**
+     * The snapshot replaced last. It is kept open for the searches which
+     * may still be reading it, and released when the next one is replaced.
+     */
+    private Snapshot retired;
+
+    /**
+     * Counts the changes to what is searched: every time a snapshot is published.
+     */
+    private long changes = 0;
+
+    /**
+     * The snapshot pinned by the query running on each thread, if any
+     * (see {@link #pin}).
+     */
+    private final ThreadLocal<Snapshot> pinned = new ThreadLocal<>();
+
+    /**
+     * The dictionary hash table is written to this file by the scalable index.
      */
     RandomAccessFile dictionaryFile;
 
     /**
-     * The data (the PostingsLists) are stored in this file.
+     * The data (the PostingsLists) are written to this file by the scalable index.
      */
     RandomAccessFile dataFile;
 
@@ -77,6 +144,179 @@ public class PersistentHashedIndex implements Index {
      */
     HashMap<String, PostingsList> index = new HashMap<>();
 
+    /**
+     * The names and lengths of the documents being indexed, written on
+     * commit. Until then, docNames and docLengths stay those of the
+     * generation searched.
+     */
+    HashMap<Integer, String> indexedDocNames = new HashMap<>();
+    HashMap<Integer, Integer> indexedDocLengths = new HashMap<>();
+
+    /**
+     * Euclidean lengths of the documents being indexed, written on commit.
+     */
+    HashMap<Integer, Double> docEuclideanLengths = new HashMap<>();
+
+    /**
+     * Held while a committed generation is made the one searched, along with
+     * its document names and lengths and its Euclidean lengths. The Engine
+     * makes it the write side of the lock its searches hold, so that no
+     * search sees the documents of one generation with the postings of
+     * another.
+     */
+    Lock publishLock = new ReentrantLock();
+
+    /**
+     * The biword index built along with this index, if any. It is written
+     * into every generation committed.
+     */
+    BiwordIndex biwordIndex;
+
+
+
+    // ===================================================================
+
+    /**
+     * A committed generation opened for reading, and the components read
+     * along with it. Its files are only read with positional reads, which
+     * do not move a shared file pointer, so any number of threads can read
+     * it at the same time. A lookup reads the current snapshot once and
+     * uses it throughout; a commit publishes a new snapshot with all of its
+     * components at once. The components of the generation opened at
+     * startup are filled in as they are read (see {@link #readComponents}).
+     */
+    static class Snapshot {
+        final IndexGeneration generation;
+        final FileChannel dictionary;
+        final FileChannel data;
+
+        /**
+         * The number of changes to what is searched when the snapshot was
+         * published (see {@link #getGeneration}).
+         */
+        long changes;
+
+        /**
+         * One for the index while the snapshot is current or was replaced
+         * last, and one for every read in progress. The files are closed
+         * when the last reference is released.
+         */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        /**
+         * The statistics of every term, kept in memory. Null if the
+         * generation has no statistics file, in which case they are
+         * computed from the postings lists.
+         */
+        volatile HashMap<String, TermStats> termStats = new HashMap<>();
+
+        /**
+         * Bloom filter over the vocabulary, checked before the dictionary
+         * is probed. Null if there is none.
+         */
+        volatile BloomFilter bloomFilter;
+
+        /**
+         * The block tables of the long postings lists.
+         */
+        volatile HashMap<String, PostingsBlocks> postingsBlocks = new HashMap<>();
+
+        /**
+         * The champion lists of the long postings lists.
+         */
+        volatile HashMap<String, ChampionList> championLists = new HashMap<>();
+
+        /**
+         * The biword index of the generation, read on first use. Null if it
+         * has not been read, or if the generation has none.
+         */
+        private BiwordIndex biwordIndex;
+        private boolean biwordIndexRead = false;
+
+        private Snapshot(IndexGeneration generation, FileChannel dictionary, FileChannel data) {
+            this.generation = generation;
+            this.dictionary = dictionary;
+            this.data = data;
+        }
+
+        /**
+         * Opens the dictionary file and the data file of a generation, or
+         * returns an empty snapshot if the generation is null.
+         */
+        static Snapshot open(IndexGeneration generation) throws IOException {
+            if (generation == null) {
+                return new Snapshot(null, null, null);
+            }
+            FileChannel dictionary = FileChannel.open(Paths.get(generation.path(DICTIONARY_FNAME)), StandardOpenOption.READ);
+            try {
+                return new Snapshot(generation, dictionary, FileChannel.open(Paths.get(generation.path(DATA_FNAME)), StandardOpenOption.READ));
+            } catch (IOException e) {
+                dictionary.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Sets the block tables, whose blocks are then read from this snapshot.
+         */
+        void setPostingsBlocks(HashMap<String, PostingsBlocks> blocks) {
+            for (PostingsBlocks table : blocks.values()) {
+                table.snapshot = this;
+            }
+            postingsBlocks = blocks;
+        }
+
+        /**
+         * Returns the biword index of the generation, reading it the first
+         * time it is asked for, or null if the generation has none.
+         */
+        synchronized BiwordIndex biwordIndex() {
+            if (!biwordIndexRead) {
+                biwordIndexRead = true;
+                if (generation != null && generation.contains(BIWORD_FNAME + BiwordIndex.DICTIONARY_SUFFIX)) {
+                    try {
+                        biwordIndex = new BiwordIndex(0).read(generation, BIWORD_FNAME);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+            return biwordIndex;
+        }
+
+        /**
+         * Takes a reference for a read, or returns false if the files are
+         * already closed.
+         */
+        boolean acquire() {
+            int n;
+            do {
+                n = references.get();
+                if (n == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(n, n + 1));
+            return true;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0 && dictionary != null) {
+                try {
+                    dictionary.close();
+                    data.close();
+                    synchronized (this) {
+                        biwordIndexRead = true;
+                        if (biwordIndex != null) {
+                            biwordIndex.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
 
     // ===================================================================
 
@@ -116,31 +356,130 @@ public class PersistentHashedIndex implements Index {
 
 
     /**
-     * Constructor. Opens the dictionary file and the data file.
-     * If these files don't exist, they will be created.
+     * Constructor. Opens the dictionary file and the data file of the
+     * current generation of the index, if there is one. The document
+     * information is read by {@link #readComponents}.
      */
     public PersistentHashedIndex() {
         try {
-            dictionaryFile = new RandomAccessFile(INDEX_DIR + "/" + DICTIONARY_FNAME, "rw");
-            dataFile = new RandomAccessFile(INDEX_DIR + "/" + DATA_FNAME, "rw");
+            open(IndexGeneration.current(INDEX_DIR));
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-        try {
-            readDocInfo();
-        } catch (FileNotFoundException ignored) {
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Reads the document information and the Euclidean lengths in parallel.
+     */
+    @Override
+    public void readComponents(ComponentLoader loader) {
+        loader.run("document information", () -> {
+            try {
+                readDocInfo();
+            } catch (FileNotFoundException ignored) {
+            }
+        });
+        loader.run("Euclidean lengths", () -> readEuclideanLengths(Searcher.euclideanLengths));
+        loader.run("term statistics", () -> {
+            try {
+                readTermStats();
+            } catch (FileNotFoundException ignored) {
+            }
+        });
+        loader.run("Bloom filter", () -> {
+            try {
+                readBloomFilter();
+            } catch (FileNotFoundException ignored) {
+            }
+        });
+        loader.run("postings block tables", () -> {
+            try {
+                readPostingsBlocks();
+            } catch (FileNotFoundException ignored) {
+            }
+        });
+        loader.run("champion lists", () -> {
+            try {
+                readChampionLists();
+            } catch (FileNotFoundException ignored) {
+            }
+        });
+    }
+
+    /**
+     * Switches reading to the files of the given generation.
+     */
+    void open(IndexGeneration generation) throws IOException {
+        publish(Snapshot.open(generation));
+    }
+
+    /**
+     * Makes a snapshot the one searched from now on. The snapshot it replaces
+     * is released only when the next one is published, so the searches which
+     * started on it have a whole commit to finish.
+     */
+    synchronized void publish(Snapshot next) {
+        Snapshot previous = snapshot;
+        next.changes = ++changes;
+        snapshot = next;
+        if (retired != null) {
+            retired.release();
+        }
+        retired = previous;
+    }
+
+    /**
+     * Returns the snapshot pinned by the query on this thread, or else the
+     * current snapshot, with a reference taken for a read.
+     */
+    Snapshot acquireSnapshot() {
+        Snapshot pinned = this.pinned.get();
+        if (pinned != null && pinned.acquire()) {
+            return pinned;
+        }
+        while (true) {
+            Snapshot current = snapshot;
+            if (current.acquire()) {
+                return current;
+            }
         }
     }
 
+    /**
+     * Returns the snapshot pinned by the query on this thread, or else the
+     * current snapshot, for reading what is kept in memory.
+     */
+    private Snapshot searched() {
+        Snapshot pinned = this.pinned.get();
+        return pinned != null ? pinned : snapshot;
+    }
+
+    /**
+     * Pins the current snapshot for the query on this thread: its lookups,
+     * term statistics, block tables and champion lists all come from that
+     * snapshot, and its files stay open, until the pin is closed. A pin
+     * taken while the thread already holds one does nothing.
+     */
+    @Override
+    public Pin pin() {
+        if (pinned.get() != null) {
+            return () -> {
+            };
+        }
+        Snapshot snapshot = acquireSnapshot();
+        pinned.set(snapshot);
+        return () -> {
+            pinned.remove();
+            snapshot.release();
+        };
+    }
+
     /**
      * Writes data to the data file at a specified place.
      *
      * @return The number of bytes written.
      */
-    int writeData(String dataString, long ptr) {
+    int writeData(String dataString, long ptr, RandomAccessFile dataFile) {
         try {
             dataFile.seek(ptr);
             byte[] data = dataString.getBytes();
@@ -154,17 +493,51 @@ public class PersistentHashedIndex implements Index {
 
 
     /**
-     * Reads data from the data file
+     * Reads data from the data file of a snapshot
+     *
+     * @throws UncheckedIOException if the data cannot be read, or its checksum does not match
      */
-    String readData(long ptr, int size) {
+    String readData(Snapshot snapshot, long ptr, int size) {
+        QueryTrace.Stage previous = QueryTrace.enter(QueryTrace.Stage.READ);
         try {
-            dataFile.seek(ptr);
-            byte[] data = new byte[size];
-            dataFile.readFully(data);
-            return new String(data);
+            if (snapshot.generation != null) {
+                snapshot.generation.verify(DATA_FNAME, snapshot.data, ptr, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            readFully(snapshot.data, buffer, ptr);
+            Metrics.add(Metrics.Counter.POSTINGS_BYTES_READ, size);
+            QueryTrace.count(QueryTrace.Counter.BYTES_READ, size);
+            return new String(buffer.array());
         } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+            throw new UncheckedIOException(e);
+        } finally {
+            QueryTrace.exit(previous);
+        }
+    }
+
+    /**
+     * Parses a postings list read from the data file.
+     */
+    private PostingsList decode(String data) {
+        QueryTrace.Stage previous = QueryTrace.enter(QueryTrace.Stage.DECODE);
+        try {
+            PostingsList postings = PostingsList.fromString(data);
+            QueryTrace.count(QueryTrace.Counter.POSTINGS_READ, postings.size());
+            return postings;
+        } finally {
+            QueryTrace.exit(previous);
+        }
+    }
+
+    /**
+     * Fills the buffer with the bytes of the channel from position
+     * <code>ptr</code> on, without moving the position of the channel.
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long ptr) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, ptr + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at " + (ptr + buffer.position()));
+            }
         }
     }
 
@@ -208,32 +581,77 @@ public class PersistentHashedIndex implements Index {
             ByteBuffer buffer = ByteBuffer.allocate(Entry.BYTES);
             dictionaryFile.seek(ptr);
             dictionaryFile.readFully(buffer.array());
-            long ptrData = buffer.getLong();
-            int size = buffer.getInt();
-            long hash = buffer.getLong();
-            if (ptrData == 0 && size == 0 && hash == 0) {
-                return null;
-            }
-            return new Entry(ptrData, size, hash);
+            return toEntry(buffer);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
     }
 
+    /**
+     * Reads an entry from the dictionary file of a snapshot. Returns null if
+     * the slot is empty.
+     *
+     * @param ptr The place in the dictionary file where to start reading.
+     * @throws UncheckedIOException if the entry cannot be read, or its checksum does not match
+     */
+    Entry readEntry(Snapshot snapshot, long ptr) {
+        try {
+            if (snapshot.generation != null) {
+                snapshot.generation.verify(DICTIONARY_FNAME, snapshot.dictionary, ptr, Entry.BYTES);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Entry.BYTES);
+            readFully(snapshot.dictionary, buffer, ptr);
+            QueryTrace.count(QueryTrace.Counter.PROBES, 1);
+            QueryTrace.count(QueryTrace.Counter.BYTES_READ, Entry.BYTES);
+            return toEntry(buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes an entry, or returns null if the slot is empty.
+     */
+    private Entry toEntry(ByteBuffer buffer) {
+        long ptrData = buffer.getLong(0);
+        int size = buffer.getInt(Long.BYTES);
+        long hash = buffer.getLong(Long.BYTES + Integer.BYTES);
+        if (ptrData == 0 && size == 0 && hash == 0) {
+            return null;
+        }
+        return new Entry(ptrData, size, hash);
+    }
+
 
     // ==================================================================
 
     /**
-     * Writes the document names and document lengths to file.
+     * Documents are indexed apart from those searched, which only change
+     * when the index is committed.
+     */
+    @Override
+    public void putDocInfo(int docID, String name, int length) {
+        indexedDocNames.put(docID, name);
+        indexedDocLengths.put(docID, length);
+    }
+
+    @Override
+    public boolean isSearchableWhileIndexing() {
+        return true;
+    }
+
+    /**
+     * Writes the names and lengths of the documents indexed to file.
      *
+     * @param fname The file to write to
      * @throws IOException {exception_description}
      */
-    protected void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream(INDEX_DIR + "/docInfo");
-        for (Map.Entry<Integer, String> entry : docNames.entrySet()) {
+    protected void writeDocInfo(String fname) throws IOException {
+        FileOutputStream fout = new FileOutputStream(fname);
+        for (Map.Entry<Integer, String> entry : indexedDocNames.entrySet()) {
             Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
+            String docInfoEntry = key + ";" + entry.getValue() + ";" + indexedDocLengths.get(key) + "\n";
             fout.write(docInfoEntry.getBytes());
         }
         fout.close();
@@ -247,7 +665,31 @@ public class PersistentHashedIndex implements Index {
      * @throws IOException {exception_description}
      */
     protected void readDocInfo() throws IOException {
-        File file = new File(INDEX_DIR + "/docInfo");
+        IndexGeneration generation = snapshot.generation;
+        if (generation == null) {
+            throw new FileNotFoundException("No index has been committed to " + INDEX_DIR);
+        }
+        readDocInfo(generation, docNames, docLengths);
+    }
+
+    /**
+     * Reads the document names and document lengths of a generation into the given maps.
+     *
+     * @throws IOException {exception_description}
+     */
+    protected void readDocInfo(IndexGeneration generation, Map<Integer, String> docNames, Map<Integer, Integer> docLengths) throws IOException {
+        generation.verifyFile(DOCINFO_FNAME);
+        readDocInfo(generation.path(DOCINFO_FNAME), docNames, docLengths);
+    }
+
+    /**
+     * Reads the document names and document lengths from a file into the
+     * given maps, without verifying it against a manifest.
+     *
+     * @throws IOException {exception_description}
+     */
+    protected void readDocInfo(String fname, Map<Integer, String> docNames, Map<Integer, Integer> docLengths) throws IOException {
+        File file = new File(fname);
         FileReader freader = new FileReader(file);
         try (BufferedReader br = new BufferedReader(freader)) {
             String line;
@@ -262,20 +704,51 @@ public class PersistentHashedIndex implements Index {
 
 
     /**
-     * Write the index to files.
+     * Write the index to files. All files are written to a new generation,
+     * which is made current only when it is complete.
      */
     public void writeIndex() {
         int collisions = 0;
+        Events.IndexCommitted event = new Events.IndexCommitted();
+        event.begin();
         try {
+            IndexGeneration next = IndexGeneration.create(INDEX_DIR);
+
             // Write the 'docNames' and 'docLengths' hash maps to a file
-            writeDocInfo();
+            writeDocInfo(next.path(DOCINFO_FNAME));
 
             // Write the dictionary and the postings list
+            try (RandomAccessFile dict = new RandomAccessFile(next.path(DICTIONARY_FNAME), "rw");
+                 RandomAccessFile data = new RandomAccessFile(next.path(DATA_FNAME), "rw")) {
+                collisions = writeDictData(collisions, dict, data);
+            }
+            writeEuclideanLengths(next.path(EUCLIDEAN_LENGTHS));
+            HashMap<String, TermStats> stats = new HashMap<>();
+            HashMap<String, ChampionList> champions = new HashMap<>();
+            for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
+                stats.put(entry.getKey(), TermStats.of(entry.getValue(), indexedDocLengths, docEuclideanLengths));
+                ChampionList championList = ChampionList.of(entry.getValue(), ChampionList.length, indexedDocLengths);
+                if (championList != null) {
+                    champions.put(entry.getKey(), championList);
+                }
+            }
+            writeTermStats(next.path(TERM_STATS_FNAME), stats);
+            writeChampionLists(next.path(CHAMPIONS_FNAME), champions);
+            BloomFilter filter = BloomFilter.of(index.keySet(), bloomFalsePositiveRate);
+            filter.write(next.path(BLOOM_FILTER_FNAME));
+            HashMap<String, PostingsBlocks> blocks = scanPostingsBlocks(next.path(DATA_FNAME), indexedDocLengths, docEuclideanLengths);
+            writePostingsBlocks(next.path(BLOCKS_FNAME), blocks);
 
-            //
-            //  YOUR CODE HERE
-            //
-            collisions = writeDictData(collisions);
+            commit(next, stats, filter, blocks, champions);
+            event.end();
+            if (event.shouldCommit()) {
+                event.generation = next.number;
+                event.terms = index.size();
+                event.documents = indexedDocNames.size();
+                event.bytes = new File(next.path(DATA_FNAME)).length();
+                event.collisions = collisions;
+                event.commit();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -283,13 +756,214 @@ public class PersistentHashedIndex implements Index {
     }
 
     /**
-     * Write the dictionary and the postings list in the data
+     * Writes the statistics of every term to file.
+     *
+     * @param fname The file to write to
+     * @param stats The statistics of every term
+     * @throws IOException {exception_description}
+     */
+    protected void writeTermStats(String fname, HashMap<String, TermStats> stats) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fname))) {
+            for (Map.Entry<String, TermStats> entry : stats.entrySet()) {
+                writer.write(entry.getKey() + ">" + entry.getValue() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Reads the statistics of every term of the current generation into memory.
+     *
+     * @throws IOException {exception_description}
+     */
+    protected void readTermStats() throws IOException {
+        Snapshot snapshot = this.snapshot;
+        IndexGeneration generation = snapshot.generation;
+        if (generation == null) {
+            throw new FileNotFoundException("No index has been committed to " + INDEX_DIR);
+        }
+        if (!new File(generation.path(TERM_STATS_FNAME)).exists()) {
+            System.err.println("No term statistics file in " + generation.dir
+                    + ". Document frequencies will be read from the postings lists; re-index to restore it.");
+            snapshot.termStats = null;
+            return;
+        }
+        generation.verifyFile(TERM_STATS_FNAME);
+        HashMap<String, TermStats> stats = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(generation.path(TERM_STATS_FNAME)))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int separator = line.indexOf('>');
+                stats.put(line.substring(0, separator), TermStats.fromString(line.substring(separator + 1)));
+            }
+        }
+        snapshot.termStats = stats;
+    }
+
+    /**
+     * Reads the Bloom filter over the vocabulary of the current generation.
+     *
+     * @throws IOException {exception_description}
+     */
+    protected void readBloomFilter() throws IOException {
+        Snapshot snapshot = this.snapshot;
+        IndexGeneration generation = snapshot.generation;
+        if (generation == null) {
+            throw new FileNotFoundException("No index has been committed to " + INDEX_DIR);
+        }
+        generation.verifyFile(BLOOM_FILTER_FNAME);
+        snapshot.bloomFilter = BloomFilter.read(generation.path(BLOOM_FILTER_FNAME));
+    }
+
+    /**
+     * Computes the block tables of the long postings lists in a data file.
+     *
+     * @param dataFname        The data file to scan
+     * @param docLengths       The lengths of the documents
+     * @param euclideanLengths The Euclidean lengths of the documents, or null if there are none
+     * @return the block table of every term with more than one block
+     * @throws IOException {exception_description}
+     */
+    protected HashMap<String, PostingsBlocks> scanPostingsBlocks(String dataFname, Map<Integer, Integer> docLengths,
+                                                                 Map<Integer, Double> euclideanLengths) throws IOException {
+        HashMap<String, PostingsBlocks> blocks = new HashMap<>();
+        try (FileInputStream in = new FileInputStream(dataFname)) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1 << 16];
+            long ptr = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] != '\n') {
+                        continue;
+                    }
+                    record.write(buffer, start, i - start);
+                    start = i + 1;
+                    byte[] bytes = record.toByteArray();
+                    record.reset();
+                    int separator = 0;
+                    while (separator < bytes.length && bytes[separator] != '>') {
+                        separator++;
+                    }
+                    if (separator < bytes.length) {
+                        // The postings are ASCII, only the token may not be.
+                        String postings = new String(bytes, separator + 1, bytes.length - separator - 1, "ISO-8859-1");
+                        PostingsBlocks table = PostingsBlocks.of(postings, ptr + separator + 1, docLengths, euclideanLengths);
+                        if (table != null) {
+                            blocks.put(new String(bytes, 0, separator), table);
+                        }
+                    }
+                    ptr += bytes.length + 1;
+                }
+                record.write(buffer, start, n - start);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Writes the block tables to file.
+     *
+     * @throws IOException {exception_description}
+     */
+    protected void writePostingsBlocks(String fname, HashMap<String, PostingsBlocks> blocks) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname)))) {
+            out.writeInt(blocks.size());
+            for (Map.Entry<String, PostingsBlocks> entry : blocks.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+    }
+
+    /**
+     * Reads the block tables of the current generation into memory.
+     *
+     * @throws IOException {exception_description}
+     */
+    protected void readPostingsBlocks() throws IOException {
+        Snapshot snapshot = this.snapshot;
+        IndexGeneration generation = snapshot.generation;
+        if (generation == null) {
+            throw new FileNotFoundException("No index has been committed to " + INDEX_DIR);
+        }
+        generation.verifyFile(BLOCKS_FNAME);
+        HashMap<String, PostingsBlocks> blocks = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(generation.path(BLOCKS_FNAME))))) {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String token = in.readUTF();
+                blocks.put(token, PostingsBlocks.read(in));
+            }
+        }
+        snapshot.setPostingsBlocks(blocks);
+    }
+
+    /**
+     * Writes the biword index into the given generation, if there is one,
+     * seals the generation, makes it the current one and starts reading
+     * from it, along with the components written with it. The document
+     * names and lengths and the Euclidean lengths searched are replaced by
+     * those of the generation at the same time, under the publish lock.
+     */
+    protected void commit(IndexGeneration next, HashMap<String, TermStats> stats, BloomFilter filter,
+                          HashMap<String, PostingsBlocks> blocks, HashMap<String, ChampionList> champions) throws IOException {
+        if (biwordIndex != null) {
+            biwordIndex.write(next.path(BIWORD_FNAME));
+        }
+        next.seal();
+        next.publish();
+        Snapshot snapshot = Snapshot.open(next);
+        snapshot.termStats = stats;
+        snapshot.bloomFilter = filter;
+        snapshot.setPostingsBlocks(blocks);
+        snapshot.championLists = champions;
+        HashMap<Integer, String> names = new HashMap<>();
+        HashMap<Integer, Integer> lengths = new HashMap<>();
+        readDocInfo(next, names, lengths);
+        HashMap<Integer, Double> euclideanLengths = new HashMap<>();
+        if (next.contains(EUCLIDEAN_LENGTHS)) {
+            readEuclideanLengths(next, euclideanLengths);
+        }
+        publishLock.lock();
+        try {
+            docNames.clear();
+            docNames.putAll(names);
+            docLengths.clear();
+            docLengths.putAll(lengths);
+            Searcher.euclideanLengths.clear();
+            Searcher.euclideanLengths.putAll(euclideanLengths);
+            publish(snapshot);
+        } finally {
+            publishLock.unlock();
+        }
+        System.err.println("Committed generation " + next.number);
+    }
+
+    /**
+     * Write the dictionary and the postings list in the dictionary file and data file
+     * of this index.
      *
      * @param collisions The number of collisions already found
      * @return The number of collisions
      * @throws IOException {exception_description}
      */
     protected int writeDictData(int collisions) throws IOException {
+        return writeDictData(collisions, dictionaryFile, dataFile);
+    }
+
+    /**
+     * Write the dictionary and the postings list in the data
+     *
+     * @param collisions     The number of collisions already found
+     * @param dictionaryFile The dictionary file to write
+     * @param dataFile       The data file to write
+     * @return The number of collisions
+     * @throws IOException {exception_description}
+     */
+    protected int writeDictData(int collisions, RandomAccessFile dictionaryFile, RandomAccessFile dataFile) throws IOException {
+        free = 0L;
+        dataFile.setLength(0);
         dictionaryFile.setLength(0); // Remove old contents
         dictionaryFile.setLength(TABLE_SIZE * Entry.BYTES);
         for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
@@ -308,7 +982,7 @@ public class PersistentHashedIndex implements Index {
             String postingsListBuilder = key + ">" + postingsList;
             int size = postingsListBuilder.getBytes().length;
             writeEntry(new Entry(ptrData, size, hash), ptrDict, dictionaryFile);
-            free += writeData(postingsListBuilder, ptrData);
+            free += writeData(postingsListBuilder, ptrData, dataFile);
         }
         return collisions;
     }
@@ -327,26 +1001,151 @@ public class PersistentHashedIndex implements Index {
     /**
      * Returns the postings for a specific term, or null
      * if the term is not in the index.
+     *
+     * @throws UncheckedIOException if the index files cannot be read, or are corrupted
      */
     public PostingsList getPostings(String token) {
         //
         //  REPLACE THE STATEMENT BELOW WITH YOUR CODE
         //
-        long hash = hashFunction(token);
-        long ptrDict = hash * Entry.BYTES;
-        Entry e = readEntry(ptrDict, dictionaryFile);
-        while (e != null) {
-            if (e.getHash() == hash) {
-                String data = readData(e.getPtr(), e.getSize());
-                if (data.startsWith(token)) {
-                    return PostingsList.fromString(data.substring(token.length() + 1));
+        Metrics.increment(Metrics.Counter.INDEX_LOOKUPS);
+        Snapshot snapshot = acquireSnapshot();
+        QueryTrace.Stage previous = QueryTrace.enter(QueryTrace.Stage.DICTIONARY);
+        try {
+            if (snapshot.generation == null) {
+                return null;
+            }
+            BloomFilter bloomFilter = snapshot.bloomFilter;
+            if (bloomFilter != null && !bloomFilter.mightContain(token)) {
+                return null;
+            }
+            long hash = hashFunction(token);
+            long ptrDict = hash * Entry.BYTES;
+            Entry e = readEntry(snapshot, ptrDict);
+            while (e != null) {
+                if (e.getHash() == hash) {
+                    String data = readData(snapshot, e.getPtr(), e.getSize());
+                    if (data.startsWith(token)) {
+                        return decode(data.substring(token.length() + 1));
+                    }
                 }
+                hash = (hash + 1) % TABLE_SIZE;
+                ptrDict = hash * Entry.BYTES;
+                e = readEntry(snapshot, ptrDict);
+            }
+            return null;
+        } finally {
+            QueryTrace.exit(previous);
+            snapshot.release();
+        }
+    }
+
+
+    /**
+     * Returns the statistics of a term from the in-memory table,
+     * or null if the term is not in the index. If the generation has
+     * no statistics, they are computed from the postings list of the term.
+     */
+    public TermStats getTermStats(String token) {
+        HashMap<String, TermStats> stats = searched().termStats;
+        if (stats != null) {
+            return stats.get(token);
+        }
+        PostingsList postingsList = getPostings(token);
+        return postingsList == null ? null : TermStats.of(postingsList, docLengths, Searcher.euclideanLengths);
+    }
+
+    /**
+     * Returns the block table of a long postings list from the in-memory
+     * tables, or null if the postings list fits in one block. A long list
+     * is read block by block instead of with getPostings, so this counts
+     * as a lookup if it finds a table.
+     */
+    public PostingsBlocks getPostingsBlocks(String token) {
+        PostingsBlocks blocks = searched().postingsBlocks.get(token);
+        if (blocks != null) {
+            Metrics.increment(Metrics.Counter.INDEX_LOOKUPS);
+        }
+        return blocks;
+    }
+
+    /**
+     * Writes the champion lists of the long postings lists to file.
+     */
+    protected void writeChampionLists(String fname, HashMap<String, ChampionList> champions) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname)))) {
+            out.writeInt(champions.size());
+            for (Map.Entry<String, ChampionList> entry : champions.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
             }
-            hash = (hash + 1) % TABLE_SIZE;
-            ptrDict = hash * Entry.BYTES;
-            e = readEntry(ptrDict, dictionaryFile);
         }
-        return null;
+    }
+
+    /**
+     * Reads the champion lists of the current generation into memory.
+     *
+     * @throws IOException {exception_description}
+     */
+    protected void readChampionLists() throws IOException {
+        Snapshot snapshot = this.snapshot;
+        IndexGeneration generation = snapshot.generation;
+        if (generation == null) {
+            throw new FileNotFoundException("No index has been committed to " + INDEX_DIR);
+        }
+        generation.verifyFile(CHAMPIONS_FNAME);
+        HashMap<String, ChampionList> champions = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(generation.path(CHAMPIONS_FNAME))))) {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String token = in.readUTF();
+                champions.put(token, ChampionList.read(in));
+            }
+        }
+        snapshot.championLists = champions;
+    }
+
+    public ChampionList getChampionList(String token) {
+        return searched().championLists.get(token);
+    }
+
+    /**
+     * Returns the biword index of the generation searched, read on first
+     * use, or null if it has none.
+     */
+    public BiwordIndex getBiwordIndex() {
+        return searched().biwordIndex();
+    }
+
+    /**
+     * Changes whenever another generation is opened. The postings being
+     * indexed are not searched before they are committed. Within a query,
+     * this is the number of the snapshot it has pinned.
+     */
+    public long getGeneration() {
+        return searched().changes;
+    }
+
+    /**
+     * Reads one block of a postings list from the data file of the
+     * generation its block table belongs to.
+     *
+     * @throws UncheckedIOException  if the block cannot be read, or its checksum does not match
+     * @throws IllegalStateException if that generation has been closed, i.e. if two newer
+     *                               ones were committed meanwhile and the query did not
+     *                               pin it (see {@link #pin})
+     */
+    public PostingsList readBlock(PostingsBlocks blocks, int block) {
+        Snapshot snapshot = blocks.snapshot != null ? blocks.snapshot : this.snapshot;
+        if (!snapshot.acquire()) {
+            throw new IllegalStateException("The generation of the block table is no longer open");
+        }
+        try {
+            QueryTrace.count(QueryTrace.Counter.BLOCKS_READ, 1);
+            return decode(readData(snapshot, blocks.ptrs[block], blocks.sizes[block]));
+        } finally {
+            snapshot.release();
+        }
     }
 
 
@@ -378,28 +1177,52 @@ public class PersistentHashedIndex implements Index {
      */
     public void cleanup() {
         System.err.println(index.keySet().size() + " unique words");
-        System.err.print("Writing index to disk...");
+        System.err.print("Computing Euclidean lengths...");
         long time = System.currentTimeMillis();
+        computeEuclideanLengths();
+        long lengthsTime = System.currentTimeMillis();
+        long elapsedTime = lengthsTime - time;
+        System.err.println("done! in " + elapsedTime / 1000F + "s. Writing index to disk...");
         writeIndex();
-        long indexTime = System.currentTimeMillis();
-        long elapsedTime = indexTime - time;
-        System.err.println("done! in " + elapsedTime / 1000F + "s. Writing Euclidean lengths...");
-        for (int docID : docNames.keySet()) {
-            if (docID % 1000 == 0) {
-                System.err.println("Writing Euclidean lengths for docID: " + docID);
+        System.err.println("done!");
+        elapsedTime = System.currentTimeMillis() - lengthsTime;
+        System.err.println("Writing index took " + elapsedTime / 1000F + "s");
+    }
+
+    /**
+     * Computes the Euclidean lengths of all documents in a single pass over the index.
+     */
+    void computeEuclideanLengths() {
+        HashMap<Integer, Double> squares = new HashMap<>();
+        int N = indexedDocNames.size();
+        for (PostingsList postingsList : index.values()) {
+            double idf = Math.log(N / (double) postingsList.size());
+            for (int i = 0; i < postingsList.size(); i++) {
+                double tf = postingsList.get(i).score;
+                squares.merge(postingsList.get(i).docID, tf * idf * tf * idf, Double::sum);
+            }
+        }
+        docEuclideanLengths.clear();
+        for (int docID : indexedDocNames.keySet()) {
+            docEuclideanLengths.put(docID, Math.sqrt(squares.getOrDefault(docID, 0.0)));
+        }
+    }
+
+    /**
+     * Writes the Euclidean lengths computed so far to file.
+     */
+    void writeEuclideanLengths(String fname) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fname))) {
+            for (Map.Entry<Integer, Double> entry : docEuclideanLengths.entrySet()) {
+                writer.write(entry.getKey() + ";" + entry.getValue() + "\n");
             }
-            putDocEuclideanLength(docID);
         }
-        readEuclideanLengths(Searcher.euclideanLengths);
-        System.err.println("done!");
-        elapsedTime = System.currentTimeMillis() - indexTime;
-        System.err.println("Writing Euclidean lengths took " + elapsedTime / 60000 + " minutes");
     }
 
     @Override
     public void putDocEuclideanLength(int docID) {
         double length = 0;
-        int N = docNames.size();
+        int N = indexedDocNames.size();
         for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
             PostingsList postingsList = entry.getValue();
             double idf = Math.log(N / (double) postingsList.size());
@@ -410,18 +1233,16 @@ public class PersistentHashedIndex implements Index {
                 }
             }
         }
-        try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(INDEX_DIR + "/" + EUCLIDEAN_LENGTHS, true));
-            writer.write(docID + ";" + Math.sqrt(length) + "\n");
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        docEuclideanLengths.put(docID, Math.sqrt(length));
     }
 
     public double getEuclideanLength(int docID) {
+        IndexGeneration generation = snapshot.generation;
+        if (generation == null) {
+            return 0;
+        }
         try {
-            File file = new File(INDEX_DIR + "/" + EUCLIDEAN_LENGTHS);
+            File file = new File(generation.path(EUCLIDEAN_LENGTHS));
             BufferedReader br = new BufferedReader(new FileReader(file));
             String line;
             while ((line = br.readLine()) != null) {
@@ -438,17 +1259,30 @@ public class PersistentHashedIndex implements Index {
     }
 
     public void readEuclideanLengths(HashMap<Integer, Double> euclideanLengths) {
+        IndexGeneration generation = snapshot.generation;
         try {
-            File file = new File(INDEX_DIR + "/" + EUCLIDEAN_LENGTHS);
-            BufferedReader br = new BufferedReader(new FileReader(file));
+            if (generation == null) {
+                throw new FileNotFoundException(EUCLIDEAN_LENGTHS);
+            }
+            readEuclideanLengths(generation, euclideanLengths);
+        } catch (FileNotFoundException e) {
+            System.err.println("No Euclidean lengths file found. Will calculate them...");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the Euclidean lengths of a generation into the given map.
+     */
+    void readEuclideanLengths(IndexGeneration generation, Map<Integer, Double> euclideanLengths) throws IOException {
+        generation.verifyFile(EUCLIDEAN_LENGTHS);
+        try (BufferedReader br = new BufferedReader(new FileReader(generation.path(EUCLIDEAN_LENGTHS)))) {
             String line;
             while ((line = br.readLine()) != null) {
                 String[] data = line.split(";");
                 euclideanLengths.put(Integer.parseInt(data[0]), Double.parseDouble(data[1]));
             }
-            br.close();
-        } catch (IOException e) {
-            System.err.println("No Euclidean lengths file found. Will calculate them...");
         }
     }
 }
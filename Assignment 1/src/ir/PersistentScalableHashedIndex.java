@@ -2,6 +2,8 @@ package ir;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 import static java.lang.Thread.sleep;
@@ -21,21 +23,17 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
     private static final Queue<String> mergeWaitList = new LinkedList<>();
     private static int collisions = 0;
     private static int lastDocIDInfo = -1;
+    private static volatile IndexGeneration finalGeneration = null;
 
 
     public PersistentScalableHashedIndex() {
-        try {
-            readDocInfo();
-        } catch (FileNotFoundException ignored) {
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
     }
 
     public PersistentScalableHashedIndex(int threadNumber, HashMap<String, PostingsList> index) {
         this.threadNumber = threadNumber;
         this.index = index;
         try {
+            open(null);
             dictionaryFile = new RandomAccessFile(INDEX_DIR + "/" + threadNumber + DICTIONARY_FNAME, "rw");
             dataFile = new RandomAccessFile(INDEX_DIR + "/" + threadNumber + DATA_FNAME, "rw");
         } catch (IOException e) {
@@ -44,13 +42,31 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
     }
 
     /**
-     * Writes the document names and document lengths to file.
+     * The documents are buffered in docNames and docLengths, which are
+     * appended to file with every block, so the index is not searched while
+     * it is being built.
+     */
+    @Override
+    public void putDocInfo(int docID, String name, int length) {
+        docNames.put(docID, name);
+        docLengths.put(docID, length);
+    }
+
+    @Override
+    public boolean isSearchableWhileIndexing() {
+        return false;
+    }
+
+    /**
+     * Appends the document names and document lengths to file. The file is
+     * truncated on the first call, so that a rerun does not duplicate lines.
      *
+     * @param fname The file to append to
      * @throws IOException {exception_description}
      */
     @Override
-    protected void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream(INDEX_DIR + "/docInfo", true);
+    protected void writeDocInfo(String fname) throws IOException {
+        FileOutputStream fout = new FileOutputStream(fname, lastDocIDInfo >= 0);
         for (Map.Entry<Integer, String> entry : docNames.entrySet()) {
             Integer key = entry.getKey();
             if (key > lastDocIDInfo) {
@@ -72,7 +88,7 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
         if (index.size() >= MAX_TOKENS) {
             (new Thread(new PersistentScalableHashedIndex(++threadLaunched, new HashMap<>(index)))).start();
             try {
-                writeDocInfo();
+                writeDocInfo(INDEX_DIR + "/" + DOCINFO_FNAME);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -88,7 +104,6 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
     public void cleanup() {
         System.err.print("Writing index to disk...");
         long startTime = System.currentTimeMillis();
-        writeIndex();
         run();
         long elapsedTime = System.currentTimeMillis() - startTime;
         System.err.println("done!");
@@ -97,20 +112,34 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
 
     /**
      * Run function of thread. Starts to write index and then merge with other threads.
-     * If no thread is launched, repoint to main index.
+     * The final merge is written to a new generation of the index; if no thread is
+     * launched, the main thread's files become that generation.
      */
     @Override
     public void run() {
         finalMerge = false;
         try {
             if (threadNumber == 0) {
-                writeDocInfo();
+                writeDocInfo(INDEX_DIR + "/" + DOCINFO_FNAME);
+                open(null);
                 dictionaryFile = new RandomAccessFile(INDEX_DIR + "/" + 0 + DICTIONARY_FNAME, "rw");
                 dataFile = new RandomAccessFile(INDEX_DIR + "/" + 0 + DATA_FNAME, "rw");
             }
 
-            collisions += writeDictData(0);
+            Events.BlockFlushed flushed = new Events.BlockFlushed();
+            flushed.begin();
+            int terms = index.size();
+            int blockCollisions = writeDictData(0);
+            collisions += blockCollisions;
             index.clear();
+            flushed.end();
+            if (flushed.shouldCommit()) {
+                flushed.block = threadNumber;
+                flushed.terms = terms;
+                flushed.bytes = dataFile.length();
+                flushed.collisions = blockCollisions;
+                flushed.commit();
+            }
 
             synchronized (lockMerge) {
                 mergeWaitList.add(threadNumber + "");
@@ -150,20 +179,47 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
                 while (!finalMerge || mergingThreads > 0) {
                     sleep(1000);
                 }
-                readDocInfo();
+                Events.IndexCommitted committed = new Events.IndexCommitted();
+                committed.begin();
+                dictionaryFile.close();
+                dataFile.close();
+                dictionaryFile = null;
+                dataFile = null;
                 if (threadLaunched == 0 && threadFinished == 1) {
                     System.out.println("Collisions: " + collisions);
                     System.out.println("No thread launched");
-                    System.out.println("Repoint to main index");
-                    dictionaryFile = new RandomAccessFile(INDEX_DIR + "/" + 0 + DICTIONARY_FNAME, "rw");
-                    dataFile = new RandomAccessFile(INDEX_DIR + "/" + 0 + DATA_FNAME, "rw");
+                    System.out.println("Commit main index");
+                    finalGeneration = IndexGeneration.create(INDEX_DIR);
+                    moveToGeneration(INDEX_DIR + "/" + 0 + DICTIONARY_FNAME, DICTIONARY_FNAME);
+                    moveToGeneration(INDEX_DIR + "/" + 0 + DATA_FNAME, DATA_FNAME);
                 } else if (threadFinished > threadLaunched) {
                     System.out.println("Collisions: " + collisions);
                     System.out.println("Thread finished: " + threadFinished);
                     System.out.println("Thread launched: " + threadLaunched);
-                    System.out.println("Repoint to main index");
-                    dictionaryFile = new RandomAccessFile(INDEX_DIR + "/" + DICTIONARY_FNAME, "rw");
-                    dataFile = new RandomAccessFile(INDEX_DIR + "/" + DATA_FNAME, "rw");
+                    System.out.println("Commit merged index");
+                }
+                moveToGeneration(INDEX_DIR + "/" + DOCINFO_FNAME, DOCINFO_FNAME);
+                // docNames and docLengths were emptied as they were written, so the lengths are read back.
+                HashMap<Integer, String> names = new HashMap<>();
+                HashMap<Integer, Integer> lengths = new HashMap<>();
+                readDocInfo(finalGeneration.path(DOCINFO_FNAME), names, lengths);
+                HashMap<String, ChampionList> champions = new HashMap<>();
+                HashMap<String, TermStats> stats = scanTermStats(finalGeneration.path(DATA_FNAME), lengths, champions);
+                writeTermStats(finalGeneration.path(TERM_STATS_FNAME), stats);
+                writeChampionLists(finalGeneration.path(CHAMPIONS_FNAME), champions);
+                BloomFilter filter = BloomFilter.of(stats.keySet(), bloomFalsePositiveRate);
+                filter.write(finalGeneration.path(BLOOM_FILTER_FNAME));
+                HashMap<String, PostingsBlocks> blocks = scanPostingsBlocks(finalGeneration.path(DATA_FNAME), lengths, null);
+                writePostingsBlocks(finalGeneration.path(BLOCKS_FNAME), blocks);
+                commit(finalGeneration, stats, filter, blocks, champions);
+                committed.end();
+                if (committed.shouldCommit()) {
+                    committed.generation = finalGeneration.number;
+                    committed.terms = stats.size();
+                    committed.documents = names.size();
+                    committed.bytes = new File(finalGeneration.path(DATA_FNAME)).length();
+                    committed.collisions = collisions;
+                    committed.commit();
                 }
             }
             System.out.println("Thread number: " + threadNumber + " finished");
@@ -183,7 +239,21 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
      * @return the prefix of the merged file
      */
     private String mergeFiles(boolean finalMerge, String prefix1, String prefix2) throws IOException {
+        Events.MergeStarted started = new Events.MergeStarted();
+        started.first = prefix1;
+        started.second = prefix2;
+        started.finalMerge = finalMerge;
+        started.commit();
+        Events.MergeFinished finished = new Events.MergeFinished();
+        finished.begin();
         String mergedPrefix = finalMerge ? "" : prefix1 + "x" + prefix2;
+        String mergedDictName = INDEX_DIR + "/" + mergedPrefix + DICTIONARY_FNAME;
+        String mergedDataName = INDEX_DIR + "/" + mergedPrefix + DATA_FNAME;
+        if (finalMerge) {
+            finalGeneration = IndexGeneration.create(INDEX_DIR);
+            mergedDictName = finalGeneration.path(DICTIONARY_FNAME);
+            mergedDataName = finalGeneration.path(DATA_FNAME);
+        }
 
         System.out.println("-------- Thread n°" + threadNumber + " merging " + prefix1 + " and " + prefix2 + " into " + mergedPrefix);
         System.out.println("-------- Final merge: " + finalMerge);
@@ -196,8 +266,8 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
         RandomAccessFile dict2 = new RandomAccessFile(dict2Name, "r");
         RandomAccessFile data1 = new RandomAccessFile(data1Name, "r");
         RandomAccessFile data2 = new RandomAccessFile(data2Name, "r");
-        RandomAccessFile dict = new RandomAccessFile(INDEX_DIR + "/" + mergedPrefix + DICTIONARY_FNAME, "rw");
-        BufferedWriter data = new BufferedWriter(new FileWriter(INDEX_DIR + "/" + mergedPrefix + DATA_FNAME));
+        RandomAccessFile dict = new RandomAccessFile(mergedDictName, "rw");
+        BufferedWriter data = new BufferedWriter(new FileWriter(mergedDataName));
         dict.setLength(TABLE_SIZE * Entry.BYTES);
 
         long free = 0;
@@ -289,12 +359,23 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
             line2 = data2.readLine();
         }
 
+        long bytesRead = data1.length() + data2.length();
         dict1.close();
         dict2.close();
         data1.close();
         data2.close();
         dict.close();
         data.close();
+        finished.end();
+        if (finished.shouldCommit()) {
+            finished.first = prefix1;
+            finished.second = prefix2;
+            finished.merged = mergedPrefix;
+            finished.finalMerge = finalMerge;
+            finished.bytesRead = bytesRead;
+            finished.bytesWritten = free;
+            finished.commit();
+        }
 
         // Delete old files
         ProcessBuilder pb = new ProcessBuilder("rm", dict1Name, dict2Name, data1Name, data2Name);
@@ -304,6 +385,51 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
     }
 
 
+    /**
+     * Moves a file written outside of the generation directory into the final generation.
+     *
+     * @param source the file to move
+     * @param fname  the name of the file in the generation
+     * @throws IOException {exception_description}
+     */
+    private void moveToGeneration(String source, String fname) throws IOException {
+        Files.move(new File(source).toPath(), new File(finalGeneration.path(fname)).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Computes the statistics and the champion list of every term by
+     * scanning a data file, since the merged postings lists are never all in
+     * memory at the same time. This index computes no Euclidean lengths, so
+     * that score bound is left infinite.
+     *
+     * @param dataFname the data file to scan
+     * @param lengths   the lengths of the documents
+     * @param champions the champion lists of the long postings lists are put here
+     * @return the statistics of every term
+     * @throws IOException {exception_description}
+     */
+    private HashMap<String, TermStats> scanTermStats(String dataFname, Map<Integer, Integer> lengths,
+                                                     HashMap<String, ChampionList> champions) throws IOException {
+        HashMap<String, TermStats> stats = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(dataFname))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String token = line.split(">")[0];
+                PostingsList postingsList = PostingsList.fromString(line.substring(token.length() + 1));
+                stats.put(token, TermStats.of(postingsList, lengths, null));
+                ChampionList championList = ChampionList.of(postingsList, ChampionList.length, lengths);
+                if (championList != null) {
+                    champions.put(token, championList);
+                }
+            }
+        }
+        return stats;
+    }
+
     /**
      * Checks if the token is in the data file.
      *
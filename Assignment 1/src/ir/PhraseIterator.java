@@ -0,0 +1,170 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Matches the documents in which its children occur at consecutive positions.
+ * The documents matched by all children are found with an {@link AndIterator},
+ * and the positions are only compared in those.
+ * <p>
+ * A child may also stand for several words of the phrase, as a pair from a
+ * {@link BiwordIndex} does. Every child then has an offset: the position of
+ * the word its positions are at, counted from the start of the phrase.
+ * <p>
+ * The positions of all the words are aligned at once: every word has a cursor
+ * into its positions, which advances to where the word would have to be for
+ * the phrase to start at the current candidate. A word found further on moves
+ * the candidate forward. Moving to a document only looks for the first
+ * occurrence of the phrase; the others are found when the positions or the
+ * score are asked for.
+ */
+public class PhraseIterator extends DocIterator {
+
+    private final List<DocIterator> children;
+    private final int[] offsets;
+    private final int length;
+    private final AndIterator approximation;
+
+    /**
+     * The positions of every word in the current document, and the cursors into them.
+     */
+    private final ArrayList<ArrayList<Integer>> positions;
+    private final int[] cursors;
+
+    /**
+     * The positions of the last word of every occurrence of the phrase in
+     * the current document, or null if they have not been collected yet.
+     */
+    private ArrayList<Integer> matches;
+
+    /**
+     * Creates an iterator over a phrase of one word per child.
+     */
+    public PhraseIterator(List<DocIterator> children) {
+        this(children, consecutive(children.size()), children.size());
+    }
+
+    /**
+     * Creates an iterator over a phrase of <code>length</code> words, in which
+     * child i is at position <code>offsets[i]</code> from the start.
+     */
+    public PhraseIterator(List<DocIterator> children, int[] offsets, int length) {
+        this.children = children;
+        this.offsets = offsets;
+        this.length = length;
+        approximation = new AndIterator(children);
+        positions = new ArrayList<>(children.size());
+        cursors = new int[children.size()];
+    }
+
+    public int docID() {
+        return approximation.docID();
+    }
+
+    public int nextDoc() {
+        return findPhrase(approximation.nextDoc());
+    }
+
+    public int advance(int target) {
+        if (approximation.docID() >= target) {
+            return approximation.docID();
+        }
+        return findPhrase(approximation.advance(target));
+    }
+
+    private int findPhrase(int doc) {
+        while (doc != NO_MORE_DOCS) {
+            positions.clear();
+            for (DocIterator child : children) {
+                positions.add(child.positions());
+            }
+            Arrays.fill(cursors, 0);
+            matches = null;
+            if (nextMatch() >= 0) {
+                // Looked at again when all the occurrences are collected.
+                cursors[0]--;
+                return doc;
+            }
+            doc = approximation.nextDoc();
+        }
+        return doc;
+    }
+
+    /**
+     * Returns the position of the first word of the next occurrence of the
+     * phrase, and moves the cursor of the first child past it. Returns -1 if
+     * there are no more occurrences in the current document.
+     */
+    private int nextMatch() {
+        int n = children.size();
+        ArrayList<Integer> first = positions.getFirst();
+        while (cursors[0] < first.size()) {
+            int start = first.get(cursors[0]) - offsets[0];
+            int i = 1;
+            while (i < n) {
+                int target = start + offsets[i];
+                ArrayList<Integer> list = positions.get(i);
+                while (cursors[i] < list.size() && list.get(cursors[i]) < target) {
+                    cursors[i]++;
+                }
+                if (cursors[i] == list.size()) {
+                    cursors[0] = first.size();
+                    return -1;
+                }
+                int found = list.get(cursors[i]);
+                if (found == target) {
+                    i++;
+                    continue;
+                }
+                // Child i is further on, so the phrase can start there at the earliest.
+                start = found - offsets[i];
+                while (cursors[0] < first.size() && first.get(cursors[0]) < start + offsets[0]) {
+                    cursors[0]++;
+                }
+                if (cursors[0] == first.size()) {
+                    return -1;
+                }
+                start = first.get(cursors[0]) - offsets[0];
+                i = 1;
+            }
+            cursors[0]++;
+            return start;
+        }
+        return -1;
+    }
+
+    /**
+     * Collects all the occurrences of the phrase in the current document.
+     */
+    private ArrayList<Integer> matches() {
+        if (matches == null) {
+            matches = new ArrayList<>();
+            for (int start = nextMatch(); start >= 0; start = nextMatch()) {
+                matches.add(start + length - 1);
+            }
+        }
+        return matches;
+    }
+
+    private static int[] consecutive(int n) {
+        int[] offsets = new int[n];
+        for (int i = 0; i < n; i++) {
+            offsets[i] = i;
+        }
+        return offsets;
+    }
+
+    public double score() {
+        return matches().size();
+    }
+
+    public ArrayList<Integer> positions() {
+        return matches();
+    }
+
+    public long cost() {
+        return approximation.cost();
+    }
+}
@@ -0,0 +1,176 @@
+package ir;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The block table of the postings list of one term in a persistent index.
+ * <p>
+ * The postings list is split into blocks of {@link #BLOCK_SIZE} postings.
+ * For every block the table holds the largest docID in it, the largest
+ * tf / length and tf / Euclidean length of its postings (the block versions
+ * of the bounds in {@link TermStats}), and where its postings are in the data
+ * file, so that one block can be read and decoded without the others.
+ * Only terms with more than one block get a table.
+ */
+public class PostingsBlocks {
+
+    /**
+     * The number of postings per block.
+     */
+    public static final int BLOCK_SIZE = 128;
+
+    final int[] lastDocIDs;
+    final double[] maxTfPerLength;
+    final double[] maxTfPerEuclidean;
+
+    /**
+     * The position and size in bytes of every block in the data file.
+     */
+    final long[] ptrs;
+    final int[] sizes;
+
+    /**
+     * The snapshot of a persistent index the table belongs to, whose data
+     * file the blocks are read from even after a newer generation has been
+     * committed. Null for the tables of an in-memory index.
+     */
+    PersistentHashedIndex.Snapshot snapshot;
+
+
+    private PostingsBlocks(int n) {
+        lastDocIDs = new int[n];
+        maxTfPerLength = new double[n];
+        maxTfPerEuclidean = new double[n];
+        ptrs = new long[n];
+        sizes = new int[n];
+    }
+
+    /**
+     * The number of blocks.
+     */
+    public int size() {
+        return lastDocIDs.length;
+    }
+
+    /**
+     * Returns the score bound of a block for the given normalization, before
+     * it is multiplied by the idf and query weight.
+     */
+    public double maxTfPerNorm(int block, NormalizationType normType) {
+        return normType == NormalizationType.EUCLIDEAN ? maxTfPerEuclidean[block] : maxTfPerLength[block];
+    }
+
+    /**
+     * Returns the index of the first block at or after <code>from</code> which
+     * may contain <code>docID</code>, or size() if there is none.
+     */
+    public int find(int from, int docID) {
+        int lo = from;
+        int hi = lastDocIDs.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lastDocIDs[mid] < docID) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Computes the block table of a postings list as it is written to the data
+     * file, i.e. postings "docID:offset,...,offset,score" separated by ';'.
+     * Either map of lengths may be null, in which case that bound is infinite.
+     *
+     * @param postings The postings list as written, optionally followed by a newline
+     * @param ptr      The position of the postings list in the data file
+     * @return the block table, or null if the list fits in a single block
+     */
+    public static PostingsBlocks of(String postings, long ptr, Map<Integer, Integer> docLengths, Map<Integer, Double> euclideanLengths) {
+        int end = postings.length();
+        if (end > 0 && postings.charAt(end - 1) == '\n') {
+            end--;
+        }
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            if (postings.charAt(i) == ';') {
+                count++;
+            }
+        }
+        count++;
+        if (count <= BLOCK_SIZE) {
+            return null;
+        }
+        PostingsBlocks blocks = new PostingsBlocks((count + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        int start = 0;
+        for (int b = 0; b < blocks.size(); b++) {
+            int blockStart = start;
+            double maxPerLength = docLengths == null ? Double.POSITIVE_INFINITY : 0;
+            double maxPerEuclidean = euclideanLengths == null ? Double.POSITIVE_INFINITY : 0;
+            int docID = -1;
+            for (int j = 0; j < BLOCK_SIZE && start < end; j++) {
+                int colon = postings.indexOf(':', start);
+                int stop = postings.indexOf(';', colon);
+                if (stop < 0 || stop > end) {
+                    stop = end;
+                }
+                docID = Integer.parseInt(postings, start, colon, 10);
+                // The last number is the score, the ones before it the offsets.
+                int tf = 0;
+                for (int i = colon; i < stop; i++) {
+                    if (postings.charAt(i) == ',') {
+                        tf++;
+                    }
+                }
+                if (docLengths != null) {
+                    Integer length = docLengths.get(docID);
+                    maxPerLength = Math.max(maxPerLength, length == null ? Double.POSITIVE_INFINITY : (double) tf / length);
+                }
+                if (euclideanLengths != null) {
+                    Double length = euclideanLengths.get(docID);
+                    maxPerEuclidean = Math.max(maxPerEuclidean, length == null ? Double.POSITIVE_INFINITY : tf / length);
+                }
+                blocks.sizes[b] = stop - blockStart;
+                start = stop + 1;
+            }
+            blocks.lastDocIDs[b] = docID;
+            blocks.maxTfPerLength[b] = maxPerLength;
+            blocks.maxTfPerEuclidean[b] = maxPerEuclidean;
+            blocks.ptrs[b] = ptr + blockStart;
+        }
+        return blocks;
+    }
+
+    /**
+     * Writes the block table.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size());
+        for (int b = 0; b < size(); b++) {
+            out.writeInt(lastDocIDs[b]);
+            out.writeDouble(maxTfPerLength[b]);
+            out.writeDouble(maxTfPerEuclidean[b]);
+            out.writeLong(ptrs[b]);
+            out.writeInt(sizes[b]);
+        }
+    }
+
+    /**
+     * Reads a block table written by {@link #write}.
+     */
+    public static PostingsBlocks read(DataInput in) throws IOException {
+        PostingsBlocks blocks = new PostingsBlocks(in.readInt());
+        for (int b = 0; b < blocks.size(); b++) {
+            blocks.lastDocIDs[b] = in.readInt();
+            blocks.maxTfPerLength[b] = in.readDouble();
+            blocks.maxTfPerEuclidean[b] = in.readDouble();
+            blocks.ptrs[b] = in.readLong();
+            blocks.sizes[b] = in.readInt();
+        }
+        return blocks;
+    }
+}
@@ -24,6 +24,22 @@ public class PostingsList {
         return list.size();
     }
 
+    /**
+     * The number of documents matching the query the list is the result of.
+     * A result which holds only the best documents (see {@link WandEvaluator})
+     * has more matches than postings, and only estimates them.
+     */
+    public int matches() {
+        return size();
+    }
+
+    /**
+     * Returns true if {@link #matches} is an estimate.
+     */
+    public boolean isMatchCountEstimated() {
+        return false;
+    }
+
     /**
      * Returns the ith posting.
      */
@@ -42,6 +58,54 @@ public class PostingsList {
         list.add(entry);
     }
 
+    /**
+     * A rough estimate of the heap taken by a posting and by each of its
+     * offsets, used to bound the memory of cached results.
+     */
+    static final int ENTRY_BYTES = 80;
+    static final int OFFSET_BYTES = 20;
+
+    /**
+     * Returns a rough estimate of the heap taken by the postings.
+     */
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (PostingsEntry entry : list) {
+            bytes += ENTRY_BYTES + (long) OFFSET_BYTES * entry.offsets.size();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the index of the first posting at or after <code>from</code>
+     * with a docID of at least <code>docID</code>, or size() if there is none.
+     * Gallops ahead and then searches binary, so skipping far ahead is cheap.
+     */
+    public int seek(int from, int docID) {
+        int size = size();
+        if (from >= size || get(from).docID >= docID) {
+            return from;
+        }
+        int lo = from;
+        int step = 1;
+        int hi = from + 1;
+        while (hi < size && get(hi).docID < docID) {
+            lo = hi;
+            step <<= 1;
+            hi = from + step;
+        }
+        hi = Math.min(hi, size);
+        while (lo + 1 < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (get(mid).docID < docID) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return hi;
+    }
+
     /**
      * Converts the postings list to a string
      *
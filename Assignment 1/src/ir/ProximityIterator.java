@@ -0,0 +1,186 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Matches the documents in which its children occur near each other
+ * (NEAR/k). In the ordered variant, the children occur in order and every
+ * child is at most <code>k</code> positions after the one before it, so an
+ * ordered NEAR/1 is a phrase. In the unordered variant, one occurrence of
+ * every child, in any order and at different positions, fits in a window of
+ * <code>k</code> positions per child after the first.
+ * <p>
+ * As for phrases, the documents matched by all children are found with an
+ * {@link AndIterator}, and the positions are only compared in those.
+ */
+public class ProximityIterator extends DocIterator {
+
+    private final List<DocIterator> children;
+    private final AndIterator approximation;
+    private final int k;
+    private final boolean ordered;
+
+    /**
+     * In an ordered match, the positions at which the words so far can end.
+     */
+    private int[] reachable = new int[16];
+    private int[] next = new int[16];
+
+    /**
+     * In an unordered match, the cursor of every distinct word into its
+     * positions, and how many times the word is repeated in the query.
+     */
+    private final int[] cursors;
+    private final int[] repeats;
+
+    /**
+     * The positions of every match in the current document: where the last
+     * word is in an ordered match, where the window starts in an unordered one.
+     */
+    private ArrayList<Integer> matches = new ArrayList<>();
+
+    public ProximityIterator(List<DocIterator> children, int k, boolean ordered) {
+        this.children = children;
+        this.k = Math.max(1, k);
+        this.ordered = ordered;
+        approximation = new AndIterator(children);
+        cursors = new int[children.size()];
+        repeats = new int[children.size()];
+    }
+
+    public int docID() {
+        return approximation.docID();
+    }
+
+    public int nextDoc() {
+        return findMatch(approximation.nextDoc());
+    }
+
+    public int advance(int target) {
+        if (approximation.docID() >= target) {
+            return approximation.docID();
+        }
+        return findMatch(approximation.advance(target));
+    }
+
+    private int findMatch(int doc) {
+        while (doc != NO_MORE_DOCS) {
+            matches = ordered ? orderedMatches() : unorderedMatches();
+            if (!matches.isEmpty()) {
+                return doc;
+            }
+            doc = approximation.nextDoc();
+        }
+        return doc;
+    }
+
+    /**
+     * Finds every position of the last word which can end an ordered match.
+     * A position of a word can end a match of the words up to it if the word
+     * before can end one at most k positions earlier. This is checked for
+     * all the words in turn, in one merge-like pass per word.
+     */
+    private ArrayList<Integer> orderedMatches() {
+        ArrayList<Integer> first = children.getFirst().positions();
+        int size = 0;
+        for (int position : first) {
+            reachable = grow(reachable, size);
+            reachable[size++] = position;
+        }
+        for (int i = 1; i < children.size() && size > 0; i++) {
+            int nextSize = 0;
+            int j = 0;
+            for (int position : children.get(i).positions()) {
+                while (j < size && reachable[j] < position - k) {
+                    j++;
+                }
+                if (j < size && reachable[j] < position) {
+                    next = grow(next, nextSize);
+                    next[nextSize++] = position;
+                }
+            }
+            int[] swap = reachable;
+            reachable = next;
+            next = swap;
+            size = nextSize;
+        }
+        ArrayList<Integer> result = new ArrayList<>(size);
+        for (int j = 0; j < size; j++) {
+            result.add(reachable[j]);
+        }
+        return result;
+    }
+
+    /**
+     * Finds every window holding one occurrence of each word. Every word has
+     * a cursor into its positions, and the one furthest behind moves on at
+     * every step, so every window which could match is looked at once. A
+     * word repeated r times in the query (its children have the same
+     * positions) needs r of its positions in the window, so its cursor
+     * covers r positions in a row.
+     */
+    private ArrayList<Integer> unorderedMatches() {
+        ArrayList<ArrayList<Integer>> positions = new ArrayList<>(children.size());
+        Arrays.fill(repeats, 0);
+        for (DocIterator child : children) {
+            ArrayList<Integer> list = child.positions();
+            int same = positions.indexOf(list);
+            if (same < 0) {
+                repeats[positions.size()] = 1;
+                positions.add(list);
+            } else {
+                repeats[same]++;
+            }
+        }
+        int words = positions.size();
+        for (int i = 0; i < words; i++) {
+            if (positions.get(i).size() < repeats[i]) {
+                return new ArrayList<>();
+            }
+            cursors[i] = 0;
+        }
+        int span = k * (children.size() - 1);
+        ArrayList<Integer> result = new ArrayList<>();
+        while (true) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            int behind = 0;
+            for (int i = 0; i < words; i++) {
+                ArrayList<Integer> list = positions.get(i);
+                int first = list.get(cursors[i]);
+                if (first < min) {
+                    min = first;
+                    behind = i;
+                }
+                max = Math.max(max, list.get(cursors[i] + repeats[i] - 1));
+            }
+            if (max - min <= span && (result.isEmpty() || result.getLast() != min)) {
+                result.add(min);
+            }
+            if (++cursors[behind] + repeats[behind] > positions.get(behind).size()) {
+                return result;
+            }
+        }
+    }
+
+    private static int[] grow(int[] array, int size) {
+        return size < array.length ? array : Arrays.copyOf(array, 2 * array.length);
+    }
+
+    /**
+     * The number of matches in the current document.
+     */
+    public double score() {
+        return matches.size();
+    }
+
+    public ArrayList<Integer> positions() {
+        return matches;
+    }
+
+    public long cost() {
+        return approximation.cost();
+    }
+}
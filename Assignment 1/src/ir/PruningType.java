@@ -0,0 +1,14 @@
+package ir;
+
+/**
+ * The ways of evaluating a tf-idf ranked query. The first three give the
+ * same top results: EXHAUSTIVE scores every posting of every query term,
+ * WAND skips the documents which cannot make it into the top k, and
+ * BLOCK_MAX_WAND also skips whole blocks of postings without reading them.
+ * CHAMPION_LISTS is approximate: it only scores the champion lists of the
+ * query terms (see {@link ChampionList}), and falls back to EXHAUSTIVE if
+ * they give fewer than k results.
+ */
+public enum PruningType {
+    EXHAUSTIVE, WAND, BLOCK_MAX_WAND, CHAMPION_LISTS
+}
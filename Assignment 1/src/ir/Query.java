@@ -70,6 +70,18 @@ public class Query {
     }
 
 
+    /**
+     * Returns the terms of the query, separated by spaces
+     */
+    public String toString() {
+        StringBuilder words = new StringBuilder();
+        for (QueryTerm t : queryterm) {
+            words.append(words.length() > 0 ? " " : "").append(t.term);
+        }
+        return words.toString();
+    }
+
+
     /**
      * Returns the number of terms
      */
@@ -0,0 +1,278 @@
+package ir;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a file of queries against the index and writes the results as a
+ * TREC run file, with one line per retrieved document:
+ * <pre>
+ * queryID Q0 docName rank score tag
+ * </pre>
+ * Document names are file names, as in the relevance judgments (see
+ * "task 1.5.txt"). Every line of the query file is one query, optionally
+ * preceded by its ID and a tab; queries without an ID are numbered from 1.
+ * Empty lines and lines starting with "//" are skipped.
+ * <p>
+ * The index is loaded once, as by <code>Engine -ni</code>, and the queries
+ * are run on a pool of threads. The throughput and the latency percentiles
+ * are printed on stderr. The result cache is cleared after the warm-up
+ * rounds, so every measured query is evaluated, and the {@link Metrics} are
+ * reset. With the <code>-trace</code> option of the Engine, the mean time
+ * of every stage of the evaluation (see {@link QueryTrace}) is printed too.
+ * <pre>
+ * java -cp classes ir.QueryRunner -q queries.txt -o run.txt [-t threads] [-w warmupRounds]
+ *     [-type ranked_query] [-ranking tf_idf] [-norm number_of_words] [-k 100] [-tag name] [engine options]
+ * </pre>
+ */
+public class QueryRunner {
+
+    public static final int DEFAULT_K = 100;
+
+    String queryFile;
+    String runFile;
+    int threads = 1;
+    int warmupRounds = 0;
+    QueryType queryType = QueryType.RANKED_QUERY;
+    RankingType rankingType = RankingType.TF_IDF;
+    NormalizationType normType = NormalizationType.NUMBER_OF_WORDS;
+    int k = DEFAULT_K;
+    String tag = "ir";
+
+    /**
+     * The options which are passed on to the Engine.
+     */
+    ArrayList<String> engineArgs = new ArrayList<>();
+
+    final ArrayList<String> queryIDs = new ArrayList<>();
+    final ArrayList<String> queries = new ArrayList<>();
+
+
+    /**
+     * The results of one run over all queries.
+     */
+    static class Run {
+        final PostingsList[] results;
+        final long[] nanos;
+        final QueryTrace[] traces;
+        final long elapsedNanos;
+        final int failures;
+
+        Run(PostingsList[] results, long[] nanos, QueryTrace[] traces, long elapsedNanos, int failures) {
+            this.results = results;
+            this.nanos = nanos;
+            this.traces = traces;
+            this.elapsedNanos = elapsedNanos;
+            this.failures = failures;
+        }
+    }
+
+
+    /**
+     * Reads the query file.
+     */
+    void readQueries() throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(queryFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("//")) {
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                queryIDs.add(tab < 0 ? String.valueOf(queries.size() + 1) : line.substring(0, tab).trim());
+                queries.add((tab < 0 ? line : line.substring(tab + 1)).toLowerCase().trim());
+            }
+        }
+    }
+
+    /**
+     * Runs every query once, on the given number of threads.
+     */
+    Run run(Searcher searcher, int threads) throws InterruptedException {
+        int n = queries.size();
+        PostingsList[] results = new PostingsList[n];
+        long[] nanos = new long[n];
+        QueryTrace[] traces = new QueryTrace[n];
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            int q = i;
+            futures.add(executor.submit(() -> {
+                long queryStart = System.nanoTime();
+                results[q] = searcher.search(new Query(queries.get(q)), queryType, rankingType, normType, k);
+                nanos[q] = System.nanoTime() - queryStart;
+                traces[q] = QueryTrace.isEnabled() ? QueryTrace.last() : null;
+            }));
+        }
+        int failures = 0;
+        for (int i = 0; i < n; i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                if (failures++ == 0) {
+                    System.err.println("Query " + queryIDs.get(i) + " failed:");
+                    e.getCause().printStackTrace();
+                }
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+        executor.shutdown();
+        return new Run(results, nanos, traces, elapsedNanos, failures);
+    }
+
+    /**
+     * Writes the first k results of every query in TREC format.
+     */
+    void writeRun(Run run) throws IOException {
+        try (PrintWriter out = new PrintWriter(runFile)) {
+            for (int q = 0; q < queries.size(); q++) {
+                PostingsList results = run.results[q];
+                if (results == null) {
+                    continue;
+                }
+                for (int i = 0; i < Math.min(k, results.size()); i++) {
+                    PostingsEntry entry = results.get(i);
+                    out.printf(Locale.ROOT, "%s Q0 %s %d %.6f %s%n", queryIDs.get(q),
+                            SearchServer.fileName(Index.docNames.get(entry.docID)), i + 1, entry.score, tag);
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints the throughput and the latency distribution of a run.
+     */
+    void report(Run run) {
+        int n = queries.size();
+        long[] sorted = run.nanos.clone();
+        Arrays.sort(sorted);
+        double seconds = run.elapsedNanos / 1e9;
+        int empty = 0;
+        for (PostingsList results : run.results) {
+            if (results == null || results.size() == 0) {
+                empty++;
+            }
+        }
+        System.err.printf(Locale.ROOT, "Ran %d queries (%s, %s) on %d threads in %.3f s: %.1f queries/s%n",
+                n, queryType, rankingType, threads, seconds, n / seconds);
+        System.err.printf(Locale.ROOT, "Latency (ms): mean %.3f, p50 %.3f, p95 %.3f, p99 %.3f, max %.3f%n",
+                Arrays.stream(sorted).average().orElse(0) / 1e6, percentile(sorted, 0.50) / 1e6,
+                percentile(sorted, 0.95) / 1e6, percentile(sorted, 0.99) / 1e6, percentile(sorted, 1) / 1e6);
+        System.err.println(empty + " queries without results, " + run.failures + " failed");
+        reportStages(run);
+    }
+
+    /**
+     * Prints the mean time per query of every stage, if the queries were traced.
+     */
+    void reportStages(Run run) {
+        long[] nanos = new long[QueryTrace.Stage.values().length];
+        int traced = 0;
+        for (QueryTrace trace : run.traces) {
+            if (trace != null) {
+                traced++;
+                for (QueryTrace.Stage stage : QueryTrace.Stage.values()) {
+                    nanos[stage.ordinal()] += trace.getNanos(stage);
+                }
+            }
+        }
+        if (traced == 0) {
+            return;
+        }
+        StringBuilder line = new StringBuilder("Mean time per stage (ms):");
+        for (QueryTrace.Stage stage : QueryTrace.Stage.values()) {
+            line.append(String.format(Locale.ROOT, " %s %.3f,", stage.name().toLowerCase(Locale.ROOT), nanos[stage.ordinal()] / 1e6 / traced));
+        }
+        line.setLength(line.length() - 1);
+        System.err.println(line);
+    }
+
+    /**
+     * The nearest-rank percentile of sorted values, or 0 if there are none.
+     */
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Decodes the command line arguments. Unknown options are left for the Engine.
+     */
+    private void decodeArgs(String[] args) {
+        int i = 0;
+        while (i < args.length) {
+            if (i + 1 >= args.length) {
+                engineArgs.add(args[i++]);
+            } else if ("-q".equals(args[i])) {
+                queryFile = args[i + 1];
+                i += 2;
+            } else if ("-o".equals(args[i])) {
+                runFile = args[i + 1];
+                i += 2;
+            } else if ("-t".equals(args[i])) {
+                threads = Integer.parseInt(args[i + 1]);
+                i += 2;
+            } else if ("-w".equals(args[i])) {
+                warmupRounds = Integer.parseInt(args[i + 1]);
+                i += 2;
+            } else if ("-type".equals(args[i])) {
+                queryType = QueryType.valueOf(args[i + 1].toUpperCase(Locale.ROOT));
+                i += 2;
+            } else if ("-ranking".equals(args[i])) {
+                rankingType = RankingType.valueOf(args[i + 1].toUpperCase(Locale.ROOT));
+                i += 2;
+            } else if ("-norm".equals(args[i])) {
+                normType = NormalizationType.valueOf(args[i + 1].toUpperCase(Locale.ROOT));
+                i += 2;
+            } else if ("-k".equals(args[i])) {
+                k = Integer.parseInt(args[i + 1]);
+                i += 2;
+            } else if ("-tag".equals(args[i])) {
+                tag = args[i + 1];
+                i += 2;
+            } else {
+                engineArgs.add(args[i++]);
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        QueryRunner runner = new QueryRunner();
+        runner.decodeArgs(args);
+        if (runner.queryFile == null || runner.runFile == null) {
+            System.err.println("Usage: java ir.QueryRunner -q <query file> -o <run file> [-t threads] [-w warmup rounds]"
+                    + " [-type query type] [-ranking ranking type] [-norm normalization] [-k results] [-tag run tag] [engine options]");
+            System.exit(1);
+        }
+        runner.readQueries();
+        // The index is only read, never rebuilt.
+        runner.engineArgs.add("-ni");
+        runner.engineArgs.add("-headless");
+        Engine engine = new Engine(runner.engineArgs.toArray(new String[0]));
+
+        for (int round = 0; round < runner.warmupRounds; round++) {
+            runner.run(engine.searcher, runner.threads);
+        }
+        engine.searcher.resultCache.clear();
+        Metrics.reset();
+        Run run = runner.run(engine.searcher, runner.threads);
+        runner.writeRun(run);
+        runner.report(run);
+        System.exit(0);
+    }
+}
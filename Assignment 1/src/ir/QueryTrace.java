@@ -0,0 +1,245 @@
+package ir;
+
+import java.util.Locale;
+
+/**
+ * Where the time of one query went: the nanoseconds spent in each stage of
+ * its evaluation, and how much it read from the index.
+ * <p>
+ * Tracing is off by default (see the <code>-trace</code> option of the
+ * Engine). When it is on, Searcher.search starts a trace for the query on
+ * the thread running it, and the Searcher and the indexes mark the stages
+ * they go through with {@link #enter} and {@link #exit}. The time between
+ * the two is counted for that stage only: a stage entered inside another one
+ * stops the clock of the outer stage, so the stages add up to the total.
+ * When tracing is off, every hook returns after reading one static field.
+ * <pre>
+ * Stage previous = QueryTrace.enter(Stage.READ);
+ * try {
+ *     ...
+ * } finally {
+ *     QueryTrace.exit(previous);
+ * }
+ * </pre>
+ * The trace of the last query on a thread is returned by {@link #last}.
+ */
+public class QueryTrace {
+
+    public enum Stage {
+        /** Anything not in another stage: the result cache, query parsing. */
+        OTHER,
+        /** Looking up terms in the dictionary of the index. */
+        DICTIONARY,
+        /** Reading postings lists from disk. */
+        READ,
+        /** Parsing the postings lists read. */
+        DECODE,
+        /** Finding the words matching wildcard terms in the k-gram index. */
+        WILDCARD,
+        /** Going through the postings lists: matching documents and adding up scores. */
+        SCORING,
+        /** Selecting the best ranked results. */
+        SORTING,
+        /** Computing the hub and authority scores of the base set. */
+        HITS
+    }
+
+    public enum Counter {
+        /** Slots of the dictionary looked at, or in-memory lookups of postings lists. */
+        PROBES,
+        /** Bytes read from the dictionary and data files. */
+        BYTES_READ,
+        /** Blocks of long postings lists read. */
+        BLOCKS_READ,
+        /** Postings read from the index. */
+        POSTINGS_READ
+    }
+
+    private static volatile boolean enabled = false;
+
+    /**
+     * Whether every trace is printed on stderr when its query is done.
+     */
+    private static volatile boolean logging = false;
+
+    private static final ThreadLocal<QueryTrace> CURRENT = new ThreadLocal<>();
+    private static final ThreadLocal<QueryTrace> LAST = new ThreadLocal<>();
+
+    public final String query;
+    public final QueryType queryType;
+    public final RankingType rankingType;
+
+    final long[] nanos = new long[Stage.values().length];
+    final long[] counts = new long[Counter.values().length];
+
+    private final long startTime;
+    private long totalNanos;
+    private boolean cached;
+    private int results;
+
+    private Stage stage = Stage.OTHER;
+    private long stageStart;
+
+
+    private QueryTrace(String query, QueryType queryType, RankingType rankingType) {
+        this.query = query;
+        this.queryType = queryType;
+        this.rankingType = rankingType;
+        startTime = System.nanoTime();
+        stageStart = startTime;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns tracing on or off, and the printing of every trace with it.
+     */
+    public static void setEnabled(boolean enabled, boolean logging) {
+        QueryTrace.logging = logging;
+        QueryTrace.enabled = enabled;
+    }
+
+    /**
+     * Starts tracing a query on this thread. Returns null if tracing is off.
+     */
+    static QueryTrace start(Query query, QueryType queryType, RankingType rankingType) {
+        if (!enabled) {
+            return null;
+        }
+        QueryTrace trace = new QueryTrace(query.toString(), queryType, rankingType);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * Ends the trace of the query, which had the given result.
+     */
+    void finish(PostingsList result, boolean cached) {
+        switchTo(Stage.OTHER);
+        totalNanos = System.nanoTime() - startTime;
+        this.cached = cached;
+        results = result == null ? 0 : result.size();
+        CURRENT.remove();
+        LAST.set(this);
+        if (logging) {
+            System.err.println(this);
+        }
+    }
+
+    /**
+     * Returns the trace of the last query searched on this thread, or null
+     * if none has been traced.
+     */
+    public static QueryTrace last() {
+        return LAST.get();
+    }
+
+    /**
+     * Counts the time from now on for the given stage of the query traced on
+     * this thread. Returns the stage to go back to, which is passed to
+     * {@link #exit}, or null if no query is traced.
+     */
+    static Stage enter(Stage stage) {
+        if (!enabled) {
+            return null;
+        }
+        QueryTrace trace = CURRENT.get();
+        return trace == null ? null : trace.switchTo(stage);
+    }
+
+    /**
+     * Goes back to the stage returned by {@link #enter}.
+     */
+    static void exit(Stage previous) {
+        if (previous != null) {
+            QueryTrace trace = CURRENT.get();
+            if (trace != null) {
+                trace.switchTo(previous);
+            }
+        }
+    }
+
+    /**
+     * Adds n to a counter of the query traced on this thread, if any.
+     */
+    static void count(Counter counter, long n) {
+        if (enabled) {
+            QueryTrace trace = CURRENT.get();
+            if (trace != null) {
+                trace.counts[counter.ordinal()] += n;
+            }
+        }
+    }
+
+    private Stage switchTo(Stage next) {
+        long now = System.nanoTime();
+        nanos[stage.ordinal()] += now - stageStart;
+        Stage previous = stage;
+        stage = next;
+        stageStart = now;
+        return previous;
+    }
+
+    public long getNanos(Stage stage) {
+        return nanos[stage.ordinal()];
+    }
+
+    public long getCount(Counter counter) {
+        return counts[counter.ordinal()];
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Whether the result came from the result cache.
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    public int getResults() {
+        return results;
+    }
+
+    /**
+     * The trace as a JSON object, with times in milliseconds.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT, "{\"totalMs\":%.3f,\"cached\":%b,\"stagesMs\":{", totalNanos / 1e6, cached));
+        for (Stage s : Stage.values()) {
+            json.append(s.ordinal() > 0 ? "," : "").append('"').append(s.name().toLowerCase(Locale.ROOT)).append("\":");
+            json.append(String.format(Locale.ROOT, "%.3f", nanos[s.ordinal()] / 1e6));
+        }
+        json.append("},\"counts\":{");
+        for (Counter c : Counter.values()) {
+            json.append(c.ordinal() > 0 ? "," : "").append('"').append(c.name().toLowerCase(Locale.ROOT)).append("\":");
+            json.append(counts[c.ordinal()]);
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * One line with the total time, the stages which took any time, and the counters.
+     */
+    @Override
+    public String toString() {
+        StringBuilder line = new StringBuilder();
+        line.append(String.format(Locale.ROOT, "Query \"%s\" (%s, %s): %d results in %.3f ms%s;",
+                query, queryType, rankingType, results, totalNanos / 1e6, cached ? " from the cache" : ""));
+        for (Stage s : Stage.values()) {
+            if (nanos[s.ordinal()] > 0) {
+                line.append(String.format(Locale.ROOT, " %s %.3f ms,", s.name().toLowerCase(Locale.ROOT), nanos[s.ordinal()] / 1e6));
+            }
+        }
+        for (Counter c : Counter.values()) {
+            line.append(' ').append(c.name().toLowerCase(Locale.ROOT).replace('_', ' ')).append(' ').append(counts[c.ordinal()]).append(',');
+        }
+        line.setLength(line.length() - 1);
+        return line.toString();
+    }
+}
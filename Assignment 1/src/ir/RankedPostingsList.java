@@ -0,0 +1,185 @@
+package ir;
+
+/**
+ * The result of a ranked query: all matching documents, ordered by
+ * descending score and, among equal scores, by ascending docID.
+ * <p>
+ * The matches are kept as primitive (docID, score) pairs. Only the best
+ * <code>pageSize</code> of them are selected, with a bounded min-heap, and
+ * turned into PostingsEntries. More are selected the first time a posting
+ * beyond the ones already selected is asked for, so showing the first page
+ * of a query matching most of the collection costs O(n log k) instead of a
+ * full sort. Every selection at least doubles the selected postings, and
+ * once a quarter of the list is asked for, all of it is sorted, so walking
+ * the whole list still costs O(n log n).
+ */
+public class RankedPostingsList extends PostingsList {
+
+    /**
+     * The matching documents and their scores, in no particular order.
+     */
+    private final int[] docIDs;
+    private final double[] scores;
+
+    /**
+     * The number of matching documents.
+     */
+    private final int size;
+
+    /**
+     * The estimated number of matching documents if the list holds only the
+     * best of them, or -1 if it holds all of them.
+     */
+    private final int estimatedMatches;
+
+    /**
+     * How many postings are selected at least when a posting beyond the selected ones is asked for.
+     */
+    private final int pageSize;
+
+    /**
+     * The number of postings selected so far. These are the first postings of the list.
+     */
+    private int selected = 0;
+
+
+    /**
+     * Creates a ranked list of the first <code>size</code> (docID, score)
+     * pairs of the given arrays, and selects its first page.
+     */
+    public RankedPostingsList(int[] docIDs, double[] scores, int size, int pageSize) {
+        this(docIDs, scores, size, pageSize, -1);
+    }
+
+    /**
+     * Creates a ranked list as above, of only the best of an estimated
+     * <code>estimatedMatches</code> matching documents, or of all of them if
+     * that is -1.
+     */
+    public RankedPostingsList(int[] docIDs, double[] scores, int size, int pageSize, int estimatedMatches) {
+        this.estimatedMatches = estimatedMatches;
+        this.docIDs = docIDs;
+        this.scores = scores;
+        this.size = size;
+        this.pageSize = Math.max(1, pageSize);
+        QueryTrace.Stage previous = QueryTrace.enter(QueryTrace.Stage.SORTING);
+        try {
+            select(Math.min(size, this.pageSize));
+        } finally {
+            QueryTrace.exit(previous);
+        }
+    }
+
+    /**
+     * Number of postings, including those not selected yet.
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int matches() {
+        return estimatedMatches < 0 ? size : estimatedMatches;
+    }
+
+    @Override
+    public boolean isMatchCountEstimated() {
+        return estimatedMatches >= 0;
+    }
+
+    /**
+     * Returns a rough estimate of the heap the list takes once every
+     * posting has been selected, which it may grow to while it is cached.
+     */
+    @Override
+    public long estimatedBytes() {
+        return (long) size * (Integer.BYTES + Double.BYTES + ENTRY_BYTES + OFFSET_BYTES);
+    }
+
+    /**
+     * Returns the ith posting, selecting more postings first if needed.
+     * Results are shared through the result cache, so postings are selected
+     * under the lock of the list.
+     */
+    @Override
+    public synchronized PostingsEntry get(int i) {
+        if (i >= selected && i < size) {
+            int m = Math.max(i + 1, Math.max(selected + pageSize, 2 * selected));
+            select(m > size / 4 ? size : m);
+        }
+        return super.get(i);
+    }
+
+    /**
+     * Selects the best <code>m</code> postings and adds those not selected before.
+     * The order is total, so the postings selected before are the first ones again.
+     */
+    private void select(int m) {
+        int[] heap = new int[m];
+        int n = 0;
+        for (int j = 0; j < size; j++) {
+            if (n < m) {
+                heap[n] = j;
+                siftUp(heap, n++);
+            } else if (m > 0 && isBetter(j, heap[0])) {
+                heap[0] = j;
+                siftDown(heap, n, 0);
+            }
+        }
+        // The root is the worst of the best m, so the heap is emptied from the back.
+        int[] ranked = new int[n];
+        for (int j = n - 1; j >= 0; j--) {
+            ranked[j] = heap[0];
+            heap[0] = heap[j];
+            siftDown(heap, j, 0);
+        }
+        for (int j = selected; j < ranked.length; j++) {
+            super.add(docIDs[ranked[j]], 0, scores[ranked[j]]);
+        }
+        selected = ranked.length;
+    }
+
+    /**
+     * Returns true if match a should be ranked before match b.
+     */
+    private boolean isBetter(int a, int b) {
+        return scores[a] > scores[b] || (scores[a] == scores[b] && docIDs[a] < docIDs[b]);
+    }
+
+    private void siftUp(int[] heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!isBetter(heap[parent], heap[i])) {
+                break;
+            }
+            swap(heap, parent, i);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int n, int i) {
+        while (true) {
+            int worst = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < n && isBetter(heap[worst], heap[left])) {
+                worst = left;
+            }
+            if (right < n && isBetter(heap[worst], heap[right])) {
+                worst = right;
+            }
+            if (worst == i) {
+                return;
+            }
+            swap(heap, i, worst);
+            i = worst;
+        }
+    }
+
+    private static void swap(int[] heap, int i, int j) {
+        int tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+    }
+}
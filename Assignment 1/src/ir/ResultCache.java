@@ -0,0 +1,127 @@
+package ir;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded cache of query results, in front of {@link Searcher#search}.
+ * <p>
+ * A result is stored under its key: the query terms and weights, everything
+ * which decides how the query is evaluated, and the generation of the index
+ * it was computed from (see {@link Index#getGeneration}). Once the index
+ * changes, the old results are never found again, and they are dropped as
+ * the least recently used ones. Results are shared between the hits, so they
+ * must not be changed.
+ * <p>
+ * The cache is bounded both by the number of results and by an estimate of
+ * the memory they take (see {@link PostingsList#estimatedBytes}), since a
+ * single result may hold every document of the collection.
+ */
+public class ResultCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private final LinkedHashMap<String, Cached> results = new LinkedHashMap<>(16, 0.75f, true);
+    private final int capacity;
+    private final long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * A cached result and its estimated size, as charged when it was stored.
+     */
+    private static class Cached {
+        final PostingsList result;
+        final long bytes;
+
+        Cached(PostingsList result, long bytes) {
+            this.result = result;
+            this.bytes = bytes;
+        }
+    }
+
+
+    /**
+     * Creates a cache of at most <code>capacity</code> results, taking at
+     * most {@link #DEFAULT_MAX_BYTES}. A cache of capacity 0 stores nothing.
+     */
+    public ResultCache(int capacity) {
+        this(capacity, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a cache of at most <code>capacity</code> results, taking at
+     * most about <code>maxBytes</code>.
+     */
+    public ResultCache(int capacity, long maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the key of a query. Terms are compared without case and
+     * weights exactly; the other parts are joined as given.
+     */
+    public static String key(Query query, long generation, Object... settings) {
+        StringBuilder key = new StringBuilder();
+        key.append(generation);
+        for (Object setting : settings) {
+            key.append('|').append(setting);
+        }
+        for (Query.QueryTerm queryTerm : query.queryterm) {
+            key.append('|').append(queryTerm.term.toLowerCase()).append('^').append(queryTerm.weight);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the result stored under the key, or null if there is none.
+     */
+    public synchronized PostingsList get(String key) {
+        Cached cached = results.get(key);
+        if (cached != null) {
+            hits++;
+            return cached.result;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Stores a result and drops the least recently used ones until the cache
+     * is within its bounds again. Null results, for queries with a term which
+     * is not in the index, are found quickly anyway and not stored, and
+     * neither are results larger than the whole cache.
+     */
+    public synchronized void put(String key, PostingsList result) {
+        if (capacity <= 0 || result == null) {
+            return;
+        }
+        long size = result.estimatedBytes();
+        if (size > maxBytes) {
+            return;
+        }
+        Cached previous = results.put(key, new Cached(result, size));
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += size;
+        Iterator<Cached> eldest = results.values().iterator();
+        while (results.size() > capacity || bytes > maxBytes) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        results.clear();
+        bytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d results cached (about %.1f MB), %d hits, %d misses", results.size(), bytes / 1e6, hits, misses);
+    }
+}
@@ -0,0 +1,148 @@
+package ir;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Accumulates the scores of the documents matching a ranked query.
+ * <p>
+ * Accumulators are taken from a small shared pool and returned to it when
+ * closed, so that they are reused from query to query however many threads
+ * search, and the memory kept is bounded by the size of the pool. It
+ * remembers which documents have been touched, so that collecting the
+ * results costs time proportional to the number of matching documents and
+ * not to the size of the collection. Resetting it costs nothing: every
+ * document carries the number of the query which last touched it, and a
+ * score left over from an earlier query counts as zero.
+ */
+public class ScoreAccumulator implements AutoCloseable {
+
+    /**
+     * The accumulators not in use. Accumulators closed while it is full are dropped.
+     */
+    private static final ArrayBlockingQueue<ScoreAccumulator> POOL =
+            new ArrayBlockingQueue<>(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private double[] scores = new double[0];
+
+    /**
+     * The query which last touched each document.
+     */
+    private int[] stamps = new int[0];
+    private int stamp = 0;
+
+    /**
+     * The documents touched by the current query, in the order they were first touched.
+     */
+    private int[] touched = new int[16];
+    private int size = 0;
+
+
+    /**
+     * Takes an accumulator from the pool, or creates one if the pool is
+     * empty, emptied and large enough for <code>numDocs</code> documents.
+     * It must be closed when the query is done with it.
+     */
+    public static ScoreAccumulator get(int numDocs) {
+        ScoreAccumulator accumulator = POOL.poll();
+        if (accumulator == null) {
+            accumulator = new ScoreAccumulator();
+        }
+        accumulator.reset(numDocs);
+        return accumulator;
+    }
+
+    /**
+     * Returns the accumulator to the pool. It must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        POOL.offer(this);
+    }
+
+    private void reset(int numDocs) {
+        if (scores.length < numDocs) {
+            scores = new double[numDocs];
+            stamps = new int[numDocs];
+            stamp = 0;
+        }
+        size = 0;
+        stamp++;
+        if (stamp == 0) {
+            // Wrapped around: the stamps of old queries could come back.
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+    }
+
+    /**
+     * Adds to the score of a document.
+     */
+    public void add(int docID, double score) {
+        touch(docID);
+        scores[docID] += score;
+    }
+
+    /**
+     * Sets the score of a document.
+     */
+    public void set(int docID, double score) {
+        touch(docID);
+        scores[docID] = score;
+    }
+
+    private void touch(int docID) {
+        if (docID >= scores.length) {
+            int length = Math.max(docID + 1, 2 * scores.length);
+            scores = Arrays.copyOf(scores, length);
+            stamps = Arrays.copyOf(stamps, length);
+        }
+        if (stamps[docID] != stamp) {
+            stamps[docID] = stamp;
+            scores[docID] = 0;
+            if (size == touched.length) {
+                touched = Arrays.copyOf(touched, 2 * size);
+            }
+            touched[size++] = docID;
+        }
+    }
+
+    /**
+     * The number of documents touched.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ith document touched.
+     */
+    public int docID(int i) {
+        return touched[i];
+    }
+
+    /**
+     * Returns the score of a document, 0 if it has not been touched.
+     */
+    public double score(int docID) {
+        return docID < scores.length && stamps[docID] == stamp ? scores[docID] : 0;
+    }
+
+    /**
+     * Returns the documents with a positive score, ranked. The accumulator
+     * may be reused as soon as this returns.
+     */
+    public RankedPostingsList toRankedList(int pageSize) {
+        int[] docIDs = new int[size];
+        double[] docScores = new double[size];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            double score = scores[touched[i]];
+            if (score > 0) {
+                docIDs[n] = touched[i];
+                docScores[n++] = score;
+            }
+        }
+        return new RankedPostingsList(docIDs, docScores, n, pageSize);
+    }
+}
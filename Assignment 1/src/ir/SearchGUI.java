@@ -13,6 +13,9 @@ import javax.swing.text.*;
 import javax.swing.event.*;
 import javax.swing.border.*;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.io.*;
 
 
@@ -61,6 +64,20 @@ public class SearchGUI extends JFrame {
      */
     private static final String MARKER = "----------------------------------------------------";
 
+    /**
+     * Runs the searches, one at a time, so that the window stays responsive.
+     */
+    private final transient ExecutorService searchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The token of the search running, or null. Only used on the event thread.
+     */
+    private transient CancellationToken inFlight = null;
+
 
     /*
      *   Common GUI resources
@@ -78,21 +95,30 @@ public class SearchGUI extends JFrame {
     JMenu optionsMenu = new JMenu("Search options");
     JMenu rankingMenu = new JMenu("Ranking score");
     JMenu normalizationMenu = new JMenu("Normalization");
+    JMenu pruningMenu = new JMenu("Pruning");
     JMenu structureMenu = new JMenu("Text structure");
     JMenuItem saveItem = new JMenuItem("Save index and exit");
     JMenuItem quitItem = new JMenuItem("Quit");
     JRadioButtonMenuItem intersectionItem = new JRadioButtonMenuItem("Intersection query");
     JRadioButtonMenuItem phraseItem = new JRadioButtonMenuItem("Phrase query");
     JRadioButtonMenuItem rankedItem = new JRadioButtonMenuItem("Ranked retrieval");
+    JRadioButtonMenuItem nearItem = new JRadioButtonMenuItem("Near query (any order, within " + Searcher.DEFAULT_PROXIMITY_WINDOW + " words)");
+    JRadioButtonMenuItem orderedNearItem = new JRadioButtonMenuItem("Near query (in order, within " + Searcher.DEFAULT_PROXIMITY_WINDOW + " words)");
     JRadioButtonMenuItem tfidfItem = new JRadioButtonMenuItem("tf-idf");
     JRadioButtonMenuItem pagerankItem = new JRadioButtonMenuItem("PageRank");
     JRadioButtonMenuItem combinationItem = new JRadioButtonMenuItem("Combination");
     JRadioButtonMenuItem hitsItem = new JRadioButtonMenuItem("HITS");
+    JCheckBoxMenuItem proximityItem = new JCheckBoxMenuItem("Proximity boost (tf-idf)");
     JRadioButtonMenuItem numberOfWordsItem = new JRadioButtonMenuItem("Number of words");
     JRadioButtonMenuItem euclideanLengthItem = new JRadioButtonMenuItem("Euclidean length");
+    JRadioButtonMenuItem exhaustiveItem = new JRadioButtonMenuItem("Exhaustive");
+    JRadioButtonMenuItem wandItem = new JRadioButtonMenuItem("WAND (top results only)");
+    JRadioButtonMenuItem blockMaxWandItem = new JRadioButtonMenuItem("Block-Max WAND (top results only)");
+    JRadioButtonMenuItem championListsItem = new JRadioButtonMenuItem("Champion lists (approximate)");
     ButtonGroup queries = new ButtonGroup();
     ButtonGroup ranking = new ButtonGroup();
     ButtonGroup normalization = new ButtonGroup();
+    ButtonGroup pruning = new ButtonGroup();
 
 
     /**
@@ -122,28 +148,44 @@ public class SearchGUI extends JFrame {
         menuBar.add(optionsMenu);
         menuBar.add(rankingMenu);
         menuBar.add(normalizationMenu);
+        menuBar.add(pruningMenu);
         fileMenu.add(quitItem);
         optionsMenu.add(intersectionItem);
         optionsMenu.add(phraseItem);
         optionsMenu.add(rankedItem);
+        optionsMenu.add(nearItem);
+        optionsMenu.add(orderedNearItem);
         rankingMenu.add(tfidfItem);
         rankingMenu.add(pagerankItem);
         rankingMenu.add(combinationItem);
         rankingMenu.add(hitsItem);
+        rankingMenu.addSeparator();
+        rankingMenu.add(proximityItem);
         normalizationMenu.add(numberOfWordsItem);
         normalizationMenu.add(euclideanLengthItem);
+        pruningMenu.add(exhaustiveItem);
+        pruningMenu.add(wandItem);
+        pruningMenu.add(blockMaxWandItem);
+        pruningMenu.add(championListsItem);
         queries.add(intersectionItem);
         queries.add(phraseItem);
         queries.add(rankedItem);
+        queries.add(nearItem);
+        queries.add(orderedNearItem);
         ranking.add(tfidfItem);
         ranking.add(pagerankItem);
         ranking.add(combinationItem);
         ranking.add(hitsItem);
         normalization.add(numberOfWordsItem);
         normalization.add(euclideanLengthItem);
+        pruning.add(exhaustiveItem);
+        pruning.add(wandItem);
+        pruning.add(blockMaxWandItem);
+        pruning.add(championListsItem);
         intersectionItem.setSelected(true);
         tfidfItem.setSelected(true);
         numberOfWordsItem.setSelected(true);
+        exhaustiveItem.setSelected(true);
         p.add(menuBar);
         // Logo
         JPanel p1 = new JPanel();
@@ -186,39 +228,73 @@ public class SearchGUI extends JFrame {
                     }
                     query.relevanceFeedback(results, relevant, engine);
                 }
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
-                long startTime = System.currentTimeMillis();
-                synchronized (engine.indexLock) {
-                    results = engine.searcher.search(query, queryType, rankingType, normType);
+                // Search in the background, and cancel the search still running, if any.
+                // Searches wait while new files are being indexed, but not for each other.
+                if (inFlight != null) {
+                    inFlight.cancel();
                 }
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                // Display the first few results + a button to see all results.
-                //
-                // We don't want to show all results directly since the displaying itself
-                // might take a long time, if there are many results.
-                if (results != null) {
-                    displayResults(MAX_RESULTS, elapsedTime / 1000.0);
-                } else {
-                    displayInfoText("Found 0 matching document(s)");
-
-                    if (engine.speller != null) {
-                        SpellingOptionsDialog dialog = new SpellingOptionsDialog(50);
+                CancellationToken cancellation = new CancellationToken();
+                inFlight = cancellation;
+                Query searched = query;
+                QueryType searchedType = queryType;
+                RankingType searchedRanking = rankingType;
+                NormalizationType searchedNorm = normType;
+                displayInfoText("Searching...");
+                searchExecutor.execute(() -> {
+                    long startTime = System.currentTimeMillis();
+                    PostingsList found;
+                    engine.indexLock.readLock().lock();
+                    try {
+                        found = engine.searcher.search(searched, searchedType, searchedRanking, searchedNorm, MAX_RESULTS, cancellation);
+                    } catch (CancellationException ex) {
+                        return;
+                    } catch (RuntimeException ex) {
+                        ex.printStackTrace();
+                        SwingUtilities.invokeLater(() -> {
+                            if (inFlight == cancellation) {
+                                inFlight = null;
+                                displayInfoText("The search failed: " + ex);
+                            }
+                        });
+                        return;
+                    } finally {
+                        engine.indexLock.readLock().unlock();
+                    }
+                    long elapsedTime = System.currentTimeMillis() - startTime;
+                    String[] corrections = null;
+                    if (found == null && engine.speller != null && !cancellation.isCancelled()) {
                         startTime = System.currentTimeMillis();
-                        String[] corrections = engine.speller.check(query, 10);
-                        elapsedTime = System.currentTimeMillis() - startTime;
-                        System.err.println("It took " + elapsedTime / 1000.0 + "s to check spelling");
-                        if (corrections != null && corrections.length > 0) {
-                            String choice = dialog.show(corrections, corrections[0]);
-                            if (choice != null) {
-                                queryWindow.setText(choice);
-                                queryWindow.grabFocus();
-                                this.actionPerformed(e);
+                        corrections = engine.speller.check(searched, 10);
+                        System.err.println("It took " + (System.currentTimeMillis() - startTime) / 1000.0 + "s to check spelling");
+                    }
+                    String[] suggestions = corrections;
+                    // The results are shown on the event thread, unless a newer query was asked meanwhile.
+                    SwingUtilities.invokeLater(() -> {
+                        if (inFlight != cancellation) {
+                            return;
+                        }
+                        inFlight = null;
+                        results = found;
+                        // Display the first few results + a button to see all results.
+                        //
+                        // We don't want to show all results directly since the displaying itself
+                        // might take a long time, if there are many results.
+                        if (results != null) {
+                            displayResults(MAX_RESULTS, elapsedTime / 1000.0);
+                        } else {
+                            displayInfoText("Found 0 matching document(s)");
+                            if (suggestions != null && suggestions.length > 0) {
+                                SpellingOptionsDialog dialog = new SpellingOptionsDialog(50);
+                                String choice = dialog.show(suggestions, suggestions[0]);
+                                if (choice != null) {
+                                    queryWindow.setText(choice);
+                                    queryWindow.grabFocus();
+                                    actionPerformed(e);
+                                }
                             }
                         }
-                    }
-                }
+                    });
+                });
             }
         };
 
@@ -257,6 +333,20 @@ public class SearchGUI extends JFrame {
         };
         rankedItem.addActionListener(setRankedQuery);
 
+        Action setNearQuery = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                queryType = QueryType.NEAR_QUERY;
+            }
+        };
+        nearItem.addActionListener(setNearQuery);
+
+        Action setOrderedNearQuery = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                queryType = QueryType.ORDERED_NEAR_QUERY;
+            }
+        };
+        orderedNearItem.addActionListener(setOrderedNearQuery);
+
         Action setTfidfRanking = new AbstractAction() {
             public void actionPerformed(ActionEvent e) {
                 rankingType = RankingType.TF_IDF;
@@ -286,6 +376,13 @@ public class SearchGUI extends JFrame {
         };
         hitsItem.addActionListener(setHITSRanking);
 
+        Action setProximityBoost = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                engine.searcher.proximityWeight = proximityItem.isSelected() ? Searcher.DEFAULT_PROXIMITY_WEIGHT : 0;
+            }
+        };
+        proximityItem.addActionListener(setProximityBoost);
+
         Action setNumberOfWordsNormalization = new AbstractAction() {
             public void actionPerformed(ActionEvent e) {
                 normType = NormalizationType.NUMBER_OF_WORDS;
@@ -300,6 +397,34 @@ public class SearchGUI extends JFrame {
         };
         euclideanLengthItem.addActionListener(setEuclideanNormalization);
 
+        Action setExhaustivePruning = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                engine.searcher.pruningType = PruningType.EXHAUSTIVE;
+            }
+        };
+        exhaustiveItem.addActionListener(setExhaustivePruning);
+
+        Action setWandPruning = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                engine.searcher.pruningType = PruningType.WAND;
+            }
+        };
+        wandItem.addActionListener(setWandPruning);
+
+        Action setBlockMaxWandPruning = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                engine.searcher.pruningType = PruningType.BLOCK_MAX_WAND;
+            }
+        };
+        blockMaxWandItem.addActionListener(setBlockMaxWandPruning);
+
+        Action setChampionListsPruning = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                engine.searcher.pruningType = PruningType.CHAMPION_LISTS;
+            }
+        };
+        championListsItem.addActionListener(setChampionListsPruning);
+
     }
 
 
@@ -325,7 +450,8 @@ public class SearchGUI extends JFrame {
      * @param elapsedTime         Shows how long time it took to compute the results.
      */
     void displayResults(int maxResultsToDisplay, double elapsedTime) {
-        displayInfoText(String.format("Found %d matching document(s) in %.3f seconds", results.size(), elapsedTime));
+        displayInfoText(String.format("Found %s%d matching document(s) in %.3f seconds",
+                results.isMatchCountEstimated() ? "about " : "", results.matches(), elapsedTime));
         box = new JCheckBox[maxResultsToDisplay];
         int i;
         for (i = 0; i < results.size() && i < maxResultsToDisplay; i++) {
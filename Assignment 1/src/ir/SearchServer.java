@@ -0,0 +1,237 @@
+package ir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves searches over HTTP on the loopback interface, for running the
+ * engine without the GUI.
+ * <p>
+ * <code>GET /search?q=...</code> evaluates the query and returns the best
+ * results as JSON:
+ * <pre>
+ * {"query":"...","type":"RANKED_QUERY","ranking":"TF_IDF","total":1234,"totalEstimated":false,
+ *  "tookMs":3.1,"results":[{"docID":17,"doc":"Davis.f","score":0.52},...]}
+ * </pre>
+ * With WAND pruning only the best documents are found, and
+ * <code>total</code> is an estimate of the number of matching documents.
+ * The optional parameters <code>type</code>, <code>ranking</code> and
+ * <code>norm</code> take the names of the QueryType, RankingType and
+ * NormalizationType constants, in any case, and <code>k</code> the number
+ * of results to return. Every request is handled on a virtual thread of its
+ * own, and the searches run at the same time (see PersistentHashedIndex).
+ * When tracing is on, the response also has the {@link QueryTrace} of the
+ * query as <code>"trace"</code>.
+ * <p>
+ * <code>GET /metrics</code> returns the {@link Metrics} in the Prometheus
+ * text format.
+ */
+public class SearchServer {
+
+    public static final int MAX_K = 1000;
+
+    private final Engine engine;
+    private final HttpServer server;
+
+
+    /**
+     * Creates a server for the engine on the given port; 0 picks a free one.
+     */
+    public SearchServer(Engine engine, int port) throws IOException {
+        this.engine = engine;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/search", this::handleSearch);
+        server.createContext("/metrics", this::handleMetrics);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    public void start() {
+        server.start();
+        System.err.println("Serving searches on http://localhost:" + getPort() + "/search");
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                respond(exchange, 405, error("Only GET is supported"));
+                return;
+            }
+            respond(exchange, 200, search(parseParameters(exchange.getRequestURI().getRawQuery())));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error(e.getMessage()));
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            respond(exchange, 500, error(e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            Metrics.write(new PrintStream(buffer, false, StandardCharsets.UTF_8));
+            byte[] body = buffer.toByteArray();
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Evaluates the query given by the request parameters and returns the result as JSON.
+     */
+    String search(HashMap<String, String> parameters) {
+        String queryString = parameters.get("q");
+        if (queryString == null || queryString.isBlank()) {
+            throw new IllegalArgumentException("Missing query parameter q");
+        }
+        QueryType queryType = parseEnum(QueryType.class, parameters.getOrDefault("type", "ranked_query"));
+        RankingType rankingType = parseEnum(RankingType.class, parameters.getOrDefault("ranking", "tf_idf"));
+        NormalizationType normType = parseEnum(NormalizationType.class, parameters.getOrDefault("norm", "number_of_words"));
+        int k = parseK(parameters.getOrDefault("k", String.valueOf(Searcher.DEFAULT_TOP_K)));
+
+        Query query = new Query(queryString.toLowerCase().trim());
+        long startTime = System.nanoTime();
+        PostingsList results;
+        engine.indexLock.readLock().lock();
+        try {
+            results = engine.searcher.search(query, queryType, rankingType, normType, k);
+        } finally {
+            engine.indexLock.readLock().unlock();
+        }
+        double tookMs = (System.nanoTime() - startTime) / 1e6;
+        QueryTrace trace = QueryTrace.isEnabled() ? QueryTrace.last() : null;
+
+        int size = results == null ? 0 : results.size();
+        int total = results == null ? 0 : results.matches();
+        StringBuilder json = new StringBuilder();
+        json.append("{\"query\":").append(quote(queryString));
+        json.append(",\"type\":").append(quote(queryType.name()));
+        json.append(",\"ranking\":").append(quote(rankingType.name()));
+        json.append(",\"total\":").append(total);
+        json.append(",\"totalEstimated\":").append(results != null && results.isMatchCountEstimated());
+        json.append(",\"tookMs\":").append(String.format(Locale.ROOT, "%.3f", tookMs));
+        json.append(",\"results\":[");
+        for (int i = 0; i < Math.min(k, size); i++) {
+            PostingsEntry entry = results.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"docID\":").append(entry.docID);
+            json.append(",\"doc\":").append(quote(fileName(Index.docNames.get(entry.docID))));
+            json.append(",\"score\":").append(Double.isFinite(entry.score) ? String.valueOf(entry.score) : "null");
+            json.append('}');
+        }
+        json.append(']');
+        if (trace != null) {
+            json.append(",\"trace\":").append(trace.toJson());
+        }
+        json.append('}');
+        return json.toString();
+    }
+
+    private static <T extends Enum<T>> T parseEnum(Class<T> type, String name) {
+        try {
+            return Enum.valueOf(type, name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + type.getSimpleName() + ": " + name);
+        }
+    }
+
+    private static int parseK(String value) {
+        int k;
+        try {
+            k = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("k is not a number: " + value);
+        }
+        if (k < 1 || k > MAX_K) {
+            throw new IllegalArgumentException("k must be between 1 and " + MAX_K);
+        }
+        return k;
+    }
+
+    /**
+     * Decodes the parameters of a query string. A parameter given more than once keeps its last value.
+     */
+    static HashMap<String, String> parseParameters(String rawQuery) {
+        HashMap<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int separator = pair.indexOf('=');
+            String name = separator < 0 ? pair : pair.substring(0, separator);
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    /**
+     * The last part of a document path, as shown in the GUI.
+     */
+    static String fileName(String path) {
+        if (path == null) {
+            return "";
+        }
+        return path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+    }
+
+    static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
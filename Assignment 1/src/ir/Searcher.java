@@ -10,9 +10,12 @@ package ir;
 import pagerank.PageRank;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
 
 /**
  * Searches an index for results of a query.
@@ -25,16 +28,30 @@ public class Searcher {
     Index index;
 
     /**
-     * The k-gram index to be searched by this Searcher
+     * The k-gram index to be searched by this Searcher, loaded on first use
      */
-    KGramIndex kgIndex;
+    Supplier<KGramIndex> kgIndex;
 
     /**
      * PageRank object
      */
     PageRank pageRank;
 
-    HITSRanker hitsRanker;
+    /**
+     * HITS ranker over the link graph, loaded on first use
+     */
+    Supplier<HITSRanker> hitsRanker;
+
+    /**
+     * Index of frequent word pairs for phrase queries, if there is one
+     */
+    Supplier<BiwordIndex> biwordIndex = () -> null;
+
+    /**
+     * The files describing the link graph used by HITS
+     */
+    static final String LINKS_FILE = "../../Assignment 2/src/pagerank/linksDavis.txt";
+    static final String TITLES_FILE = "../../Assignment 2/src/pagerank/davisTitles.txt";
 
     static final HashMap<Integer, Double> euclideanLengths = new HashMap<>();
 
@@ -42,15 +59,74 @@ public class Searcher {
     final double PR_WEIGHT = 750;
 
     /**
-     * Constructor
+     * The number of ranked results selected at a time when no other number is given
+     */
+    public static final int DEFAULT_TOP_K = 10;
+
+    /**
+     * How tf-idf ranked queries are evaluated. This and the proximity
+     * settings below may be changed from another thread while searching, so
+     * every search reads them once (see {@link Settings}).
+     */
+    volatile PruningType pruningType = PruningType.EXHAUSTIVE;
+
+    /**
+     * The default window of NEAR/k queries, and the default weight of the
+     * proximity boost when it is turned on
+     */
+    public static final int DEFAULT_PROXIMITY_WINDOW = 5;
+    public static final double DEFAULT_PROXIMITY_WEIGHT = 0.5;
+
+    /**
+     * How many positions apart the words of a NEAR/k query may be
+     * (see {@link ProximityIterator})
+     */
+    volatile int proximityWindow = DEFAULT_PROXIMITY_WINDOW;
+
+    /**
+     * How much tf-idf ranked scores are raised for documents in which the
+     * query words occur near each other. 0 turns the boost off.
+     */
+    volatile double proximityWeight = 0;
+
+    /**
+     * The settings a search is evaluated and cached with, read once when it starts.
+     */
+    private static class Settings {
+        final PruningType pruningType;
+        final int proximityWindow;
+        final double proximityWeight;
+
+        Settings(PruningType pruningType, int proximityWindow, double proximityWeight) {
+            this.pruningType = pruningType;
+            this.proximityWindow = proximityWindow;
+            this.proximityWeight = proximityWeight;
+        }
+    }
+
+    /**
+     * The results of recent queries. A cache of capacity 0 turns caching
+     * off, e.g. for benchmarks.
+     */
+    ResultCache resultCache = new ResultCache(ResultCache.DEFAULT_CAPACITY);
+
+    /**
+     * Constructor. The Euclidean lengths are read along with the index
+     * (see {@link Index#readComponents}), the link graph for HITS is
+     * read the first time a HITS query is made.
      */
     public Searcher(Index index, KGramIndex kgIndex) {
+        this(index, () -> kgIndex, new ComponentLoader.Lazy<>("HITS link graph", () -> new HITSRanker(LINKS_FILE, TITLES_FILE, index)));
+    }
+
+    /**
+     * Constructor for components which are loaded lazily.
+     */
+    public Searcher(Index index, Supplier<KGramIndex> kgIndex, Supplier<HITSRanker> hitsRanker) {
         this.index = index;
         this.kgIndex = kgIndex;
+        this.hitsRanker = hitsRanker;
         // pageRank = new PageRank("../../Assignment 2/src/pagerank/linksDavis.txt");
-        index.readEuclideanLengths(euclideanLengths);
-        hitsRanker = new HITSRanker("../../Assignment 2/src/pagerank/linksDavis.txt", "../../Assignment 2/src/pagerank/davisTitles.txt", index);
-        System.err.println("Ready to receive queries!");
     }
 
     /**
@@ -59,30 +135,99 @@ public class Searcher {
      * @return A postings list representing the result of the query.
      */
     public PostingsList search(Query query, QueryType queryType, RankingType rankingType, NormalizationType normType) {
-        //
-        //  REPLACE THE STATEMENT BELOW WITH YOUR CODE
-        //
-        List<KGramPostingsEntry> postings = null;
-        for (Query.QueryTerm queryTerm : query.queryterm) {
-            if (queryTerm.term.length() == kgIndex.getK()) {
-                if (postings == null) {
-                    postings = kgIndex.getPostings(queryTerm.term);
-                } else {
-                    postings = kgIndex.intersect(postings, kgIndex.getPostings(queryTerm.term));
+        return search(query, queryType, rankingType, normType, DEFAULT_TOP_K);
+    }
+
+    /**
+     * Searches the index for postings matching the query. Ranked queries
+     * only select the best <code>k</code> results; the next k are selected
+     * when a result beyond them is asked for (see {@link RankedPostingsList}).
+     * A query asked before, with the same settings and on the same index
+     * generation, gets the same result from the result cache.
+     * The index is pinned for the whole search (see {@link Index#pin}), so
+     * that a commit meanwhile does not change what it reads.
+     * When tracing is on, the stages of the search are recorded in a
+     * {@link QueryTrace}. The latency of every search is recorded in the
+     * {@link Metrics}, and in Flight Recorder when it is recording
+     * (see {@link Events}).
+     *
+     * @return A postings list representing the result of the query.
+     */
+    public PostingsList search(Query query, QueryType queryType, RankingType rankingType, NormalizationType normType, int k) {
+        return search(query, queryType, rankingType, normType, k, CancellationToken.NONE);
+    }
+
+    /**
+     * Searches the index as above, until the search is done or the token is
+     * cancelled. A cancelled search throws a CancellationException, and its
+     * result is not cached.
+     *
+     * @return A postings list representing the result of the query.
+     */
+    public PostingsList search(Query query, QueryType queryType, RankingType rankingType, NormalizationType normType, int k,
+                               CancellationToken cancellation) {
+        long startTime = System.nanoTime();
+        Events.QueryExecuted event = new Events.QueryExecuted();
+        event.begin();
+        QueryTrace trace = QueryTrace.start(query, queryType, rankingType);
+        CancellationToken previousToken = cancellation.makeCurrent();
+        PostingsList result = null;
+        boolean cached = false;
+        boolean cancelled = false;
+        Settings settings = new Settings(pruningType, proximityWindow, proximityWeight);
+        Index.Pin pin = index.pin();
+        try {
+            String key = ResultCache.key(query, index.getGeneration(), queryType, rankingType, normType, k,
+                    settings.pruningType, settings.proximityWindow, settings.proximityWeight);
+            result = resultCache.get(key);
+            cached = result != null;
+            Metrics.increment(cached ? Metrics.Counter.CACHE_HITS : Metrics.Counter.CACHE_MISSES);
+            if (result == null) {
+                QueryTrace.Stage previous = QueryTrace.enter(QueryTrace.Stage.SCORING);
+                try {
+                    cancellation.check();
+                    result = evaluate(query, queryType, rankingType, normType, k, settings);
+                } finally {
+                    QueryTrace.exit(previous);
                 }
+                resultCache.put(key, result);
             }
-        }
-        if (postings != null) {
-            int resNum = postings.size();
-            System.err.println("Found " + resNum + " posting(s)");
-            if (resNum > 10) {
-                System.err.println("The first 10 of them are:");
-                resNum = 10;
+            return result;
+        } catch (CancellationException e) {
+            cancelled = true;
+            Metrics.increment(Metrics.Counter.CANCELLED_SEARCHES);
+            throw e;
+        } finally {
+            pin.close();
+            CancellationToken.restore(previousToken);
+            if (trace != null) {
+                trace.finish(result, cached);
             }
-            for (int i = 0; i < resNum; i++) {
-                System.err.println(kgIndex.getTermByID(postings.get(i).tokenID));
+            if (!cancelled) {
+                Metrics.recordSearch(queryType, rankingType, System.nanoTime() - startTime);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.query = query.toString();
+                event.queryType = queryType.name();
+                event.rankingType = rankingType.name();
+                event.k = k;
+                event.results = result == null ? 0 : result.size();
+                event.cached = cached;
+                event.cancelled = cancelled;
+                event.commit();
             }
         }
+    }
+
+    /**
+     * Evaluates a query, without looking in the result cache.
+     */
+    private PostingsList evaluate(Query query, QueryType queryType, RankingType rankingType, NormalizationType normType, int k,
+                                  Settings settings) {
+        //
+        //  REPLACE THE STATEMENT BELOW WITH YOUR CODE
+        //
         boolean wildCard = false;
         for (Query.QueryTerm queryTerm : query.queryterm) {
             if (queryTerm.term.contains("*")) {
@@ -91,302 +236,398 @@ public class Searcher {
             }
         }
         if (queryType == QueryType.INTERSECTION_QUERY) {
-            return wildCard ? intersectionWildCardQuery(query) : intersectionQuery(query);
+            return intersectionQuery(query);
         } else if (queryType == QueryType.PHRASE_QUERY) {
-            return wildCard ? phraseWildCardQuery(query) : phraseQuery(query);
+            return phraseQuery(query);
+        } else if (queryType == QueryType.NEAR_QUERY || queryType == QueryType.ORDERED_NEAR_QUERY) {
+            return nearQuery(query, queryType == QueryType.ORDERED_NEAR_QUERY, settings.proximityWindow);
         } else if (queryType == QueryType.RANKED_QUERY) {
+            Query words = query;
             query = wildCard ? wildCardQuery(query) : query;
             if (rankingType == RankingType.TF_IDF) {
-                return rankedQueryTFIDF(query, normType);
+                return rankedQueryTFIDF(query, words, normType, k, settings);
             } else if (rankingType == RankingType.PAGERANK) {
-                return rankedQueryPageRank(query);
+                return rankedQueryPageRank(query, k);
             } else if (rankingType == RankingType.COMBINATION) {
-                return rankedQueryCombination(query, normType);
+                return rankedQueryCombination(query, normType, k);
             } else if (rankingType == RankingType.HITS) {
-                return rankedQueryHITS(query);
+                return rankedQueryHITS(query, k);
             }
         }
         return null;
     }
 
+    /**
+     * Evaluates an intersection query in one pass over the postings lists.
+     * A term starting with '-' excludes the documents containing it.
+     * <p>
+     * The terms are looked up from the rarest to the most common, by their
+     * document frequencies, so that a missing or empty term ends the query
+     * before the long postings lists are read.
+     *
+     * @return the matching documents, or null if a term is not in the index
+     */
     private PostingsList intersectionQuery(Query query) {
-        ArrayList<PostingsList> postingsLists = new ArrayList<>();
-        for (int i = 0; i < query.queryterm.size(); i++) {
-            postingsLists.add(index.getPostings(query.queryterm.get(i).term));
+        ArrayList<String> terms = new ArrayList<>();
+        ArrayList<String> negatedTerms = new ArrayList<>();
+        for (Query.QueryTerm queryTerm : query.queryterm) {
+            if (queryTerm.term.length() > 1 && queryTerm.term.startsWith("-")) {
+                negatedTerms.add(queryTerm.term.substring(1));
+            } else {
+                terms.add(queryTerm.term);
+            }
         }
-        return intersectQueries(postingsLists);
-    }
+        HashMap<String, Long> costs = new HashMap<>();
+        for (String term : terms) {
+            costs.put(term, estimateCost(term));
+        }
+        terms.sort(Comparator.comparingLong(costs::get));
 
-    private PostingsList intersectionWildCardQuery(Query query) {
-        ArrayList<PostingsList> postingsLists = new ArrayList<>();
-        for (int i = 0; i < query.queryterm.size(); i++) {
-            HashSet<String> words = wildCardSearch(query.queryterm.get(i).term);
-            PostingsList postingsList = new PostingsList();
-            for (String word : words) {
-                PostingsList postings = index.getPostings(word);
-                if (postings != null) {
-                    postingsList = merge(postingsList, postings);
+        ArrayList<DocIterator> include = new ArrayList<>();
+        boolean empty = false;
+        for (String term : terms) {
+            if (empty) {
+                // The result is empty, but a missing term still makes it null.
+                if (costs.get(term) == Long.MAX_VALUE && !term.contains("*") && index.getPostings(term) == null) {
+                    return null;
                 }
+                continue;
             }
-            postingsLists.add(postingsList);
+            DocIterator iterator = termIterator(term);
+            if (iterator == null) {
+                return null;
+            }
+            empty = iterator.cost() == 0;
+            include.add(iterator);
         }
-        return intersectQueries(postingsLists);
-    }
-
-    private PostingsList intersectQueries(ArrayList<PostingsList> postingsLists) {
-        if (postingsLists.isEmpty()) {
+        if (empty) {
             return new PostingsList();
         }
-        PostingsList result = postingsLists.getFirst();
-        for (int i = 1; i < postingsLists.size(); i++) {
-            if (result != null && postingsLists.get(i) != null) {
-                result = intersect(result, postingsLists.get(i));
+        ArrayList<DocIterator> exclude = new ArrayList<>();
+        for (String term : negatedTerms) {
+            DocIterator iterator = termIterator(term);
+            if (iterator != null) {
+                exclude.add(iterator);
             }
         }
-        return result;
+        if (include.isEmpty()) {
+            return new PostingsList();
+        }
+        DocIterator iterator = include.size() == 1 ? include.getFirst() : new AndIterator(include);
+        if (!exclude.isEmpty()) {
+            iterator = new NotIterator(iterator, exclude.size() == 1 ? exclude.getFirst() : new OrIterator(exclude));
+        }
+        return DocIterator.collect(iterator);
     }
 
-    private PostingsList intersect(PostingsList p1, PostingsList p2) {
-        PostingsList result = new PostingsList();
-        int i = 0;
-        int j = 0;
-        while (i < p1.size() && j < p2.size()) {
-            if (p1.get(i).docID == p2.get(j).docID) {
-                if (result.size() == 0 || result.get(result.size() - 1).docID != p1.get(i).docID) {
-                    PostingsEntry entry = new PostingsEntry(p1.get(i).docID, p1.get(i).offsets, p1.get(i).score + p2.get(j).score);
-                    entry.addOffsets(p2.get(j).offsets);
-                    result.add(entry);
-                } else {
-                    result.get(result.size() - 1).score = result.get(result.size() - 1).score + p2.get(j).score;
-                    result.get(result.size() - 1).addOffsets(p2.get(j).offsets);
+    /**
+     * Evaluates a phrase query in one pass over the postings lists.
+     * <p>
+     * Every pair of consecutive words in the biword index is looked up as
+     * one term, and a word is only looked up on its own if no such pair
+     * covers it. A phrase of two words whose pair is in the biword index
+     * is answered with the postings of the pair alone.
+     *
+     * @return the matching documents, or null if a term is not in the index
+     */
+    private PostingsList phraseQuery(Query query) {
+        int n = query.queryterm.size();
+        if (n == 0) {
+            return new PostingsList();
+        }
+        BiwordIndex biwords = biwordIndex.get();
+        boolean[] covered = new boolean[n];
+        ArrayList<DocIterator> children = new ArrayList<>();
+        ArrayList<Integer> offsets = new ArrayList<>();
+        for (int i = 0; biwords != null && i + 1 < n; i++) {
+            String first = query.queryterm.get(i).term;
+            String second = query.queryterm.get(i + 1).term;
+            if (!first.contains("*") && !second.contains("*") && biwords.contains(first, second)) {
+                PostingsList postings = biwords.getPostings(first, second);
+                if (n == 2) {
+                    return postings;
                 }
-                i++;
-                j++;
-            } else if (p1.get(i).docID < p2.get(j).docID) {
-                i++;
-            } else {
-                j++;
+                children.add(new TermIterator(postings));
+                offsets.add(i + 1);
+                covered[i] = true;
+                covered[i + 1] = true;
             }
         }
-        return result;
+        for (int i = 0; i < n; i++) {
+            if (!covered[i]) {
+                DocIterator iterator = termIterator(query.queryterm.get(i).term);
+                if (iterator == null) {
+                    return null;
+                }
+                children.add(iterator);
+                offsets.add(i);
+            }
+        }
+        int[] childOffsets = new int[offsets.size()];
+        for (int i = 0; i < childOffsets.length; i++) {
+            childOffsets[i] = offsets.get(i);
+        }
+        return DocIterator.collect(new PhraseIterator(children, childOffsets, n));
     }
 
-    private PostingsList merge(PostingsList p1, PostingsList p2) {
-        PostingsList result = new PostingsList();
-        int i = 0;
-        int j = 0;
-        while (i < p1.size() && j < p2.size()) {
-            if (p1.get(i).docID == p2.get(j).docID) {
-                if (result.size() == 0 || result.get(result.size() - 1).docID != p1.get(i).docID) {
-                    PostingsEntry newEntry = new PostingsEntry(p1.get(i).docID, p1.get(i).offsets, p1.get(i).score + p2.get(j).score);
-                    newEntry.addOffsets(p2.get(j).offsets);
-                    result.add(newEntry);
-                } else {
-                    result.get(result.size() - 1).score += p1.get(j).score + p2.get(i).score;
-                    result.get(result.size() - 1).addOffsets(p1.get(i).offsets);
-                    result.get(result.size() - 1).addOffsets(p2.get(j).offsets);
-                }
-                i++;
-                j++;
-            } else if (p1.get(i).docID < p2.get(j).docID) {
-                result.add(p1.get(i));
-                i++;
-            } else {
-                result.add(p2.get(j));
-                j++;
+    /**
+     * Evaluates a NEAR/k query, with k = window, in one pass over
+     * the postings lists. The score of a document is its number of matches.
+     *
+     * @return the matching documents, or null if a term is not in the index
+     */
+    private PostingsList nearQuery(Query query, boolean ordered, int window) {
+        ArrayList<DocIterator> words = new ArrayList<>();
+        for (Query.QueryTerm queryTerm : query.queryterm) {
+            DocIterator iterator = termIterator(queryTerm.term);
+            if (iterator == null) {
+                return null;
             }
+            words.add(iterator);
         }
-        while (i < p1.size()) {
-            result.add(p1.get(i));
-            i++;
+        if (words.isEmpty()) {
+            return new PostingsList();
         }
-        while (j < p2.size()) {
-            result.add(p2.get(j));
-            j++;
+        return DocIterator.collect(new ProximityIterator(words, window, ordered));
+    }
+
+    /**
+     * Returns an iterator over the documents containing a term, or over those
+     * containing any of the words matching a wildcard term. Returns null if
+     * the term is not in the index.
+     */
+    private DocIterator termIterator(String term) {
+        if (!term.contains("*")) {
+            return DocIterator.forWord(index, term);
+        }
+        ArrayList<DocIterator> words = new ArrayList<>();
+        CancellationToken cancellation = CancellationToken.current();
+        for (String word : wildCardSearch(term)) {
+            cancellation.check();
+            DocIterator iterator = DocIterator.forWord(index, word);
+            if (iterator != null) {
+                words.add(iterator);
+            }
         }
-        return result;
+        return words.size() == 1 ? words.getFirst() : new OrIterator(words);
     }
 
-    private PostingsList phraseQuery(Query query) {
-        ArrayList<PostingsList> postingsLists = new ArrayList<>();
-        for (int i = 0; i < query.queryterm.size(); i++) {
-            postingsLists.add(index.getPostings(query.queryterm.get(i).term));
+    /**
+     * Estimates the number of documents a term iterator would go through,
+     * from the document frequencies, without reading any postings list.
+     * Terms without statistics are assumed to be the most expensive.
+     */
+    private long estimateCost(String term) {
+        if (!term.contains("*")) {
+            TermStats stats = index.getTermStats(term);
+            return stats == null ? Long.MAX_VALUE : stats.df;
+        }
+        long cost = 0;
+        for (String word : wildCardSearch(term)) {
+            TermStats stats = index.getTermStats(word);
+            if (stats == null) {
+                return Long.MAX_VALUE;
+            }
+            cost += stats.df;
         }
-        return intersectPhraseQueries(postingsLists);
+        return cost;
     }
 
-    private PostingsList phraseWildCardQuery(Query query) {
-        ArrayList<PostingsList> postingsLists = new ArrayList<>();
-        for (int i = 0; i < query.queryterm.size(); i++) {
-            HashSet<String> words = wildCardSearch(query.queryterm.get(i).term);
-            PostingsList postingsList = new PostingsList();
-            for (String word : words) {
-                PostingsList postings = index.getPostings(word);
-                if (postings != null) {
-                    postingsList = merge(postingsList, postings);
+    private PostingsList rankedQueryTFIDF(Query query, Query words, NormalizationType normType, int k, Settings settings) {
+        PruningType pruningType = settings.pruningType;
+        double proximityWeight = settings.proximityWeight;
+        // The pruning bounds do not take the proximity boost into account.
+        if ((pruningType == PruningType.WAND || pruningType == PruningType.BLOCK_MAX_WAND) && proximityWeight == 0) {
+            WandEvaluator evaluator = pruningType == PruningType.BLOCK_MAX_WAND
+                    ? new BlockMaxWandEvaluator(index, euclideanLengths)
+                    : new WandEvaluator(index, euclideanLengths);
+            RankedPostingsList result = evaluator.search(query, normType, k);
+            if (result != null) {
+                return result;
+            }
+        }
+        int N = index.docLengths.size();
+        if (pruningType == PruningType.CHAMPION_LISTS) {
+            try (ScoreAccumulator scores = ScoreAccumulator.get(N)) {
+                for (int i = 0; i < query.queryterm.size(); i++) {
+                    computeChampionTFIDF(query, i, N, scores);
+                }
+                normalize(scores, normType);
+                if (proximityWeight > 0) {
+                    proximityBoost(words, scores, settings);
+                }
+                RankedPostingsList result = scores.toRankedList(k);
+                if (result.size() >= k) {
+                    return result;
                 }
             }
-            postingsLists.add(postingsList);
         }
-        return intersectPhraseQueries(postingsLists);
+        try (ScoreAccumulator scores = ScoreAccumulator.get(N)) {
+            for (int i = 0; i < query.queryterm.size(); i++) {
+                computeTFIDF(query, i, N, scores);
+            }
+            normalize(scores, normType);
+            if (proximityWeight > 0) {
+                proximityBoost(words, scores, settings);
+            }
+            return scores.toRankedList(k);
+        }
     }
 
-    private PostingsList intersectPhraseQueries(ArrayList<PostingsList> postingsLists) {
-        if (postingsLists.isEmpty()) {
-            return new PostingsList();
+    /**
+     * Adds the tf-idf scores of a query term to the documents in its champion
+     * list, or to all documents containing it if it has none. A document
+     * outside the champion list of a term gets nothing from that term.
+     */
+    private void computeChampionTFIDF(Query query, int i, int N, ScoreAccumulator scores) {
+        ChampionList champions = index.getChampionList(query.queryterm.get(i).term);
+        if (champions == null) {
+            computeTFIDF(query, i, N, scores);
+            return;
         }
-        PostingsList result = postingsLists.getFirst();
-        for (int i = 1; i < postingsLists.size(); i++) {
-            result = positionalIntersection(result, postingsLists.get(i), 1);
+        TermStats stats = index.getTermStats(query.queryterm.get(i).term);
+        if (stats == null) {
+            return;
+        }
+        double idf = Math.log((double) N / stats.df);
+        CancellationToken cancellation = CancellationToken.current();
+        for (int j = 0; j < champions.size(); j++) {
+            cancellation.check(j);
+            scores.add(champions.docIDs[j], champions.tfs[j] * idf * query.queryterm.get(i).weight);
         }
-        return result;
     }
 
-    private PostingsList positionalIntersection(PostingsList p1, PostingsList p2, int k) {
-        PostingsList result = new PostingsList();
-        int i = 0;
-        int j = 0;
-        if (p1 == null || p2 == null) {
-            return result;
-        }
-        while (i < p1.size() && j < p2.size()) {
-            if (p1.get(i).docID == p2.get(j).docID) {
-                ArrayList<Integer> p1Offsets = p1.get(i).offsets;
-                ArrayList<Integer> p2Offsets = p2.get(j).offsets;
-                int m = 0;
-                int n = 0;
-                while (m < p1Offsets.size() && n < p2Offsets.size()) {
-                    if (p1Offsets.get(m) + k == p2Offsets.get(n)) {
-                        if (result.size() == 0 || result.get(result.size() - 1).docID != p1.get(i).docID) {
-                            result.add(p1.get(i).docID, p2Offsets.get(n), p1.get(i).score + p2.get(j).score);
-                        } else {
-                            result.get(result.size() - 1).score++;
-                            result.get(result.size() - 1).offsets.add(p2Offsets.get(n));
-                        }
-                        m++;
-                        n++;
-                    } else if (p1Offsets.get(m) + k < p2Offsets.get(n)) {
-                        m++;
-                    } else {
-                        n++;
-                    }
+    /**
+     * Raises the scores of the documents in which the words of the query,
+     * wildcards included, occur near each other. A document with m unordered
+     * NEAR/k matches, k = the proximity window, has its score multiplied by
+     * 1 + the proximity weight * log(1 + m), so that the scale of the scores and
+     * the normalization do not change the effect of the boost.
+     */
+    private void proximityBoost(Query words, ScoreAccumulator scores, Settings settings) {
+        HashSet<String> terms = new HashSet<>();
+        ArrayList<DocIterator> iterators = new ArrayList<>();
+        for (Query.QueryTerm queryTerm : words.queryterm) {
+            if (terms.add(queryTerm.term)) {
+                DocIterator iterator = termIterator(queryTerm.term);
+                if (iterator != null) {
+                    iterators.add(iterator);
                 }
-                i++;
-                j++;
-            } else if (p1.get(i).docID < p2.get(j).docID) {
-                i++;
-            } else {
-                j++;
             }
         }
-        return result;
+        if (iterators.size() < 2) {
+            return;
+        }
+        ProximityIterator near = new ProximityIterator(iterators, settings.proximityWindow, false);
+        CancellationToken cancellation = CancellationToken.current();
+        int matches = 0;
+        for (int doc = near.nextDoc(); doc != DocIterator.NO_MORE_DOCS; doc = near.nextDoc()) {
+            cancellation.check(matches++);
+            double score = scores.score(doc);
+            if (score > 0) {
+                scores.set(doc, score * (1 + settings.proximityWeight * Math.log(1 + near.score())));
+            }
+        }
     }
 
-    private PostingsList rankedQueryTFIDF(Query query, NormalizationType normType) {
-        int N = index.docLengths.size();
-        double[] scores = new double[N];
-        PostingsList result = new PostingsList();
-        for (int i = 0; i < query.queryterm.size(); i++) {
-            computeTFIDF(query, i, N, scores);
-        }
-        for (int i = 0; i < N; i++) {
-            if (scores[i] > 0) {
+    private void normalize(ScoreAccumulator scores, NormalizationType normType) {
+        CancellationToken cancellation = CancellationToken.current();
+        for (int j = 0; j < scores.size(); j++) {
+            cancellation.check(j);
+            int i = scores.docID(j);
+            if (scores.score(i) > 0) {
                 if (normType == NormalizationType.NUMBER_OF_WORDS) {
-                    scores[i] /= index.docLengths.get(i);
+                    scores.set(i, scores.score(i) / index.docLengths.get(i));
                 } else if (normType == NormalizationType.EUCLIDEAN) {
-                    scores[i] /= euclideanLengths.get(i);
+                    scores.set(i, scores.score(i) / euclideanLengths.get(i));
                 }
-                result.add(i, 0, scores[i]);
             }
         }
-        result.sort();
-        return result;
     }
 
-    private void computeTFIDF(Query query, int i, int N, double[] scores) {
+    private void computeTFIDF(Query query, int i, int N, ScoreAccumulator scores) {
+        TermStats stats = index.getTermStats(query.queryterm.get(i).term);
+        if (stats == null) {
+            return;
+        }
         PostingsList postingsList = index.getPostings(query.queryterm.get(i).term);
         if (postingsList != null) {
-            double idf = Math.log((double) N / postingsList.size());
+            double idf = Math.log((double) N / stats.df);
+            CancellationToken cancellation = CancellationToken.current();
             for (int j = 0; j < postingsList.size(); j++) {
+                cancellation.check(j);
                 int docID = postingsList.get(j).docID;
                 double tf = postingsList.get(j).score;
-                scores[docID] += tf * idf * query.queryterm.get(i).weight;
+                scores.add(docID, tf * idf * query.queryterm.get(i).weight);
             }
         }
     }
 
-    private PostingsList rankedQueryPageRank(Query query) {
-        int N = index.docLengths.size();
-        double[] scores = new double[N];
-        PostingsList result = new PostingsList();
-        for (int i = 0; i < query.queryterm.size(); i++) {
-            computePageRank(query, i, scores);
-        }
-        for (int i = 0; i < N; i++) {
-            if (scores[i] > 0) {
-                result.add(i, 0, scores[i]);
+    private PostingsList rankedQueryPageRank(Query query, int k) {
+        try (ScoreAccumulator scores = ScoreAccumulator.get(index.docLengths.size())) {
+            for (int i = 0; i < query.queryterm.size(); i++) {
+                computePageRank(query, i, scores);
             }
+            return scores.toRankedList(k);
         }
-        result.sort();
-        return result;
     }
 
-    private void computePageRank(Query query, int i, double[] scores) {
+    private void computePageRank(Query query, int i, ScoreAccumulator scores) {
         PostingsList postingsList = index.getPostings(query.queryterm.get(i).term);
         if (postingsList != null) {
+            CancellationToken cancellation = CancellationToken.current();
             for (int j = 0; j < postingsList.size(); j++) {
+                cancellation.check(j);
                 int docID = postingsList.get(j).docID;
                 String docName = index.docNames.get(docID);
-                scores[docID] += pageRank.getScore(docName);
+                scores.add(docID, pageRank.getScore(docName));
             }
         }
     }
 
-    private PostingsList rankedQueryCombination(Query query, NormalizationType normType) {
-        PostingsList result = new PostingsList();
-        double[] scores = new double[index.docLengths.size()];
-        for (int i = 0; i < query.queryterm.size(); i++) {
-            computeTFIDF(query, i, index.docLengths.size(), scores);
-        }
-        ArrayList<PostingsEntry> tfidf = new ArrayList<>();
-        for (int i = 0; i < scores.length; i++) {
-            if (scores[i] > 0) {
-                if (normType == NormalizationType.NUMBER_OF_WORDS) {
-                    tfidf.add(new PostingsEntry(i, 0, scores[i] / index.docLengths.get(i)));
-                } else if (normType == NormalizationType.EUCLIDEAN) {
-                    tfidf.add(new PostingsEntry(i, 0, scores[i] / euclideanLengths.get(i)));
-                } else {
-                    tfidf.add(new PostingsEntry(i, 0, scores[i]));
+    private PostingsList rankedQueryCombination(Query query, NormalizationType normType, int k) {
+        try (ScoreAccumulator scores = ScoreAccumulator.get(index.docLengths.size())) {
+            for (int i = 0; i < query.queryterm.size(); i++) {
+                computeTFIDF(query, i, index.docLengths.size(), scores);
+            }
+            normalize(scores, normType);
+            CancellationToken cancellation = CancellationToken.current();
+            for (int j = 0; j < scores.size(); j++) {
+                cancellation.check(j);
+                int i = scores.docID(j);
+                if (scores.score(i) > 0) {
+                    String docName = index.docNames.get(i);
+                    scores.set(i, TFIDF_WEIGHT * scores.score(i) + PR_WEIGHT * pageRank.getScore(docName));
                 }
             }
+            return scores.toRankedList(k);
         }
-        for (PostingsEntry postingsEntry : tfidf) {
-            int docID = postingsEntry.docID;
-            String docName = index.docNames.get(docID);
-            double score = TFIDF_WEIGHT * postingsEntry.score + PR_WEIGHT * pageRank.getScore(docName);
-            result.add(docID, 0, score);
-        }
-        result.sort();
-        return result;
     }
 
-    private PostingsList rankedQueryHITS(Query query) {
-        PostingsList result = new PostingsList();
+    private PostingsList rankedQueryHITS(Query query, int k) {
         HashMap<Integer, Double> scores = new HashMap<>();
         for (int i = 0; i < query.queryterm.size(); i++) {
             computeHITS(query, i, scores);
         }
+        int[] docIDs = new int[scores.size()];
+        double[] docScores = new double[scores.size()];
+        int n = 0;
         for (int docID : scores.keySet()) {
-            result.add(docID, 0, scores.get(docID));
+            docIDs[n] = docID;
+            docScores[n++] = scores.get(docID);
         }
-        result.sort();
-        return result;
+        return new RankedPostingsList(docIDs, docScores, n, k);
     }
 
     private void computeHITS(Query query, int i, HashMap<Integer, Double> scores) {
         PostingsList postingsList = index.getPostings(query.queryterm.get(i).term);
         if (postingsList != null) {
-            postingsList = hitsRanker.rank(postingsList);
+            QueryTrace.Stage previous = QueryTrace.enter(QueryTrace.Stage.HITS);
+            try {
+                postingsList = hitsRanker.get().rank(postingsList);
+            } finally {
+                QueryTrace.exit(previous);
+            }
             for (int j = 0; j < postingsList.size(); j++) {
                 int docID = postingsList.get(j).docID;
                 double score = postingsList.get(j).score;
@@ -399,7 +640,22 @@ public class Searcher {
         }
     }
 
+    /**
+     * Returns the words of the k-gram index matching a wildcard term, or the
+     * term itself if it has no wildcard.
+     */
     private HashSet<String> wildCardSearch(String token) {
+        QueryTrace.Stage previous = QueryTrace.enter(QueryTrace.Stage.WILDCARD);
+        try {
+            return expandWildCard(token);
+        } finally {
+            QueryTrace.exit(previous);
+        }
+    }
+
+    private HashSet<String> expandWildCard(String token) {
+        KGramIndex kgIndex = this.kgIndex.get();
+        CancellationToken cancellation = CancellationToken.current();
         HashSet<String> result = new HashSet<>();
         if (!token.contains("*")) {
             result.add(token);
@@ -409,6 +665,7 @@ public class Searcher {
             List<KGramPostingsEntry> postings = kgIndex.getPostings(kgram);
             String word;
             for (KGramPostingsEntry entry : postings) {
+                cancellation.check();
                 word = kgIndex.getTermByID(entry.tokenID);
                 if (word.endsWith(token.substring(1, token.length() - 1))) {
                     result.add(word);
@@ -420,6 +677,7 @@ public class Searcher {
             List<KGramPostingsEntry> postings = kgIndex.getPostings(kgram);
             String word;
             for (KGramPostingsEntry entry : postings) {
+                cancellation.check();
                 word = kgIndex.getTermByID(entry.tokenID);
                 if (word.startsWith(token.substring(1, token.length() - 1))) {
                     result.add(word);
@@ -435,6 +693,7 @@ public class Searcher {
             List<KGramPostingsEntry> postings = kgIndex.intersect(postings1, postings2);
             String word;
             for (KGramPostingsEntry entry : postings) {
+                cancellation.check();
                 word = kgIndex.getTermByID(entry.tokenID);
                 if (word.startsWith(token.substring(1, index)) && word.endsWith(token.substring(index + 1, token.length() - 1))) {
                     result.add(word);
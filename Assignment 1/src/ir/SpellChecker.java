@@ -8,6 +8,7 @@
 package ir;
 
 import java.util.*;
+import java.util.function.Supplier;
 
 
 public class SpellChecker {
@@ -17,9 +18,9 @@ public class SpellChecker {
     Index index;
 
     /**
-     * K-gram index to be used by the spell checker
+     * K-gram index to be used by the spell checker, loaded on first use
      */
-    KGramIndex kgIndex;
+    Supplier<KGramIndex> kgIndex;
 
     /**
      * The auxiliary class for containing the value of your ranking function for a token
@@ -62,6 +63,10 @@ public class SpellChecker {
 
 
     public SpellChecker(Index index, KGramIndex kgIndex) {
+        this(index, () -> kgIndex);
+    }
+
+    public SpellChecker(Index index, Supplier<KGramIndex> kgIndex) {
         this.index = index;
         this.kgIndex = kgIndex;
     }
@@ -114,6 +119,7 @@ public class SpellChecker {
         //
         // YOUR CODE HERE
         //
+        Metrics.increment(Metrics.Counter.SPELLING_CHECKS);
         int numTerms = query.queryterm.size();
         if (numTerms == 0) return new String[0];
 
@@ -123,7 +129,7 @@ public class SpellChecker {
         for (int i = 0; i < numTerms; i++) {
             term = query.queryterm.get(i).term;
             list = new ArrayList<>();
-            if (index.getPostings(term) == null) {
+            if (index.getTermStats(term) == null) {
                 list = getRankedCorrections(term);
             } else {
                 list.add(new KGramStat(term, 1));
@@ -145,6 +151,7 @@ public class SpellChecker {
      * ranked suggestions.
      */
     private ArrayList<KGramStat> getRankedCorrections(String term) {
+        KGramIndex kgIndex = this.kgIndex.get();
         HashSet<String> kgrams = new HashSet<>();
         String termRegexp = "^" + term + "$";
         for (int i = 0; i <= termRegexp.length() - kgIndex.getK(); i++) {
@@ -183,16 +190,16 @@ public class SpellChecker {
         }
 
         ArrayList<KGramStat> result = new ArrayList<>();
-        PostingsList postings;
+        TermStats stats;
         int distance;
         for (String word : jaccardScores.keySet()) {
             distance = editDistance(term, word);
             if (distance <= MAX_EDIT_DISTANCE) {
-                postings = index.getPostings(word);
-                if (postings == null) {
+                stats = index.getTermStats(word);
+                if (stats == null) {
                     result.add(new KGramStat(word, (double) distance / jaccardScores.get(word)));
                 } else {
-                    result.add(new KGramStat(word, (double) distance / (postings.size() * jaccardScores.get(word))));
+                    result.add(new KGramStat(word, (double) distance / (stats.df * jaccardScores.get(word))));
                 }
             }
         }
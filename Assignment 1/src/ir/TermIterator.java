@@ -0,0 +1,46 @@
+package ir;
+
+import java.util.ArrayList;
+
+/**
+ * Iterates over the postings list of one term, held in memory.
+ */
+public class TermIterator extends DocIterator {
+
+    private final PostingsList postings;
+    private int position = -1;
+    private int doc = -1;
+
+    public TermIterator(PostingsList postings) {
+        this.postings = postings;
+    }
+
+    public int docID() {
+        return doc;
+    }
+
+    public int nextDoc() {
+        position++;
+        return doc = position < postings.size() ? postings.get(position).docID : NO_MORE_DOCS;
+    }
+
+    public int advance(int target) {
+        if (doc >= target) {
+            return doc;
+        }
+        position = postings.seek(Math.max(position, 0), target);
+        return doc = position < postings.size() ? postings.get(position).docID : NO_MORE_DOCS;
+    }
+
+    public double score() {
+        return postings.get(position).score;
+    }
+
+    public ArrayList<Integer> positions() {
+        return postings.get(position).offsets;
+    }
+
+    public long cost() {
+        return postings.size();
+    }
+}
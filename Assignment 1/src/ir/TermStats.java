@@ -0,0 +1,114 @@
+package ir;
+
+import java.util.Map;
+
+/**
+ * Statistics of one term, computed when the index is committed and kept in
+ * memory so that they can be looked up without reading any postings.
+ */
+public class TermStats {
+
+    /**
+     * Document frequency: the number of documents containing the term.
+     */
+    public final int df;
+
+    /**
+     * Collection frequency: the number of occurrences of the term in all documents.
+     */
+    public final long cf;
+
+    /**
+     * The largest number of occurrences of the term in a single document.
+     */
+    public final int maxTf;
+
+    /**
+     * The largest tf / length and tf / Euclidean length over the documents
+     * containing the term. Multiplied by the idf and query weight of the
+     * term, these bound the normalized tf-idf score the term can contribute
+     * to any document (see {@link WandEvaluator}). Infinite if unknown.
+     */
+    public final double maxTfPerLength;
+    public final double maxTfPerEuclidean;
+
+    public TermStats(int df, long cf, int maxTf) {
+        this(df, cf, maxTf, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    public TermStats(int df, long cf, int maxTf, double maxTfPerLength, double maxTfPerEuclidean) {
+        this.df = df;
+        this.cf = cf;
+        this.maxTf = maxTf;
+        this.maxTfPerLength = maxTfPerLength;
+        this.maxTfPerEuclidean = maxTfPerEuclidean;
+    }
+
+    /**
+     * Computes the statistics of a term from its postings list.
+     */
+    public static TermStats of(PostingsList postingsList) {
+        return of(postingsList, null, null);
+    }
+
+    /**
+     * Computes the statistics of a term from its postings list, including the
+     * score bounds for the document lengths given. Either map may be null, in
+     * which case that bound is left infinite.
+     */
+    public static TermStats of(PostingsList postingsList, Map<Integer, Integer> docLengths, Map<Integer, Double> euclideanLengths) {
+        long cf = 0;
+        int maxTf = 0;
+        double maxTfPerLength = docLengths == null ? Double.POSITIVE_INFINITY : 0;
+        double maxTfPerEuclidean = euclideanLengths == null ? Double.POSITIVE_INFINITY : 0;
+        for (int i = 0; i < postingsList.size(); i++) {
+            PostingsEntry entry = postingsList.get(i);
+            int tf = entry.offsets.size();
+            cf += tf;
+            maxTf = Math.max(maxTf, tf);
+            if (docLengths != null) {
+                Integer length = docLengths.get(entry.docID);
+                maxTfPerLength = Math.max(maxTfPerLength, length == null ? Double.POSITIVE_INFINITY : entry.score / length);
+            }
+            if (euclideanLengths != null) {
+                Double length = euclideanLengths.get(entry.docID);
+                maxTfPerEuclidean = Math.max(maxTfPerEuclidean, length == null ? Double.POSITIVE_INFINITY : entry.score / length);
+            }
+        }
+        return new TermStats(postingsList.size(), cf, maxTf, maxTfPerLength, maxTfPerEuclidean);
+    }
+
+    /**
+     * Returns the score bound of the term for the given normalization, before
+     * it is multiplied by the idf and query weight.
+     */
+    public double maxTfPerNorm(NormalizationType normType) {
+        return normType == NormalizationType.EUCLIDEAN ? maxTfPerEuclidean : maxTfPerLength;
+    }
+
+    /**
+     * Converts the statistics to a string
+     *
+     * @return the string
+     */
+    @Override
+    public String toString() {
+        return df + ";" + cf + ";" + maxTf + ";" + maxTfPerLength + ";" + maxTfPerEuclidean;
+    }
+
+    /**
+     * Converts a string to term statistics. Statistics written without
+     * score bounds get infinite ones.
+     *
+     * @param s the string
+     * @return the statistics
+     */
+    public static TermStats fromString(String s) {
+        String[] parts = s.split(";");
+        if (parts.length < 5) {
+            return new TermStats(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+        }
+        return new TermStats(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Integer.parseInt(parts[2]),
+                Double.parseDouble(parts[3]), Double.parseDouble(parts[4]));
+    }
+}
@@ -0,0 +1,285 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Evaluates tf-idf ranked queries document at a time with the WAND algorithm
+ * (Broder et al., "Efficient query evaluation using a two-level retrieval
+ * process", 2003).
+ * <p>
+ * Every query term has an upper bound on the normalized score it can add to
+ * a document, computed from the score bounds stored with the term statistics.
+ * The cursors over the postings lists are kept sorted by their current
+ * document. A document is only scored if the bounds of the terms up to it
+ * add up to more than the score of the k-th best document found so far;
+ * otherwise the cursors before it skip ahead to it. Documents are scored
+ * exactly as in the exhaustive evaluation, so the top k are the same.
+ * <p>
+ * The cursors are document iterators (see {@link DocIterator#forWord}), so
+ * the blocks of a long postings list in a persistent index that the cursor
+ * skips over are never read. Since the skipped documents are never
+ * counted, the result holds only the top k and estimates the number of
+ * matching documents (see {@link PostingsList#matches}).
+ */
+public class WandEvaluator {
+
+    /**
+     * The document of a cursor which has run past the end of its postings list.
+     */
+    static final int NO_MORE_DOCS = DocIterator.NO_MORE_DOCS;
+
+    /**
+     * Bounds are inflated by this factor, so that rounding can never make a
+     * score come out above the sum of the bounds of its terms.
+     */
+    static final double BOUND_SLACK = 1 + 1e-9;
+
+    final Index index;
+    final HashMap<Integer, Double> euclideanLengths;
+
+
+    /**
+     * A position in the postings list of one query term.
+     */
+    static class Cursor {
+        final DocIterator postings;
+        final double idf;
+        final double weight;
+        final double upperBound;
+        int doc;
+
+        Cursor(DocIterator postings, double idf, double weight, double upperBound) {
+            this.postings = postings;
+            this.idf = idf;
+            this.weight = weight;
+            this.upperBound = upperBound;
+            doc = postings.nextDoc();
+        }
+
+        /**
+         * The term frequency in the current document.
+         */
+        double tf() {
+            return postings.score();
+        }
+
+        void next() {
+            doc = postings.nextDoc();
+        }
+
+        /**
+         * Moves to the first document at or after <code>target</code>.
+         */
+        void advance(int target) {
+            if (doc >= target) {
+                return;
+            }
+            doc = postings.advance(target);
+        }
+    }
+
+
+    /**
+     * The k best documents found so far, in a min-heap with the worst one at the root.
+     */
+    static class TopDocs {
+        final int k;
+        final int[] docs;
+        final double[] scores;
+        int n = 0;
+
+        TopDocs(int k) {
+            this.k = k;
+            docs = new int[Math.max(1, k)];
+            scores = new double[docs.length];
+        }
+
+        /**
+         * The score a document has to beat to get in. Documents come in
+         * increasing docID order, so a later document with the same score
+         * as the k-th best ranks below it.
+         */
+        double threshold() {
+            return n < docs.length ? 0 : scores[0];
+        }
+
+        void offer(int doc, double score) {
+            if (score <= threshold()) {
+                return;
+            }
+            if (n < docs.length) {
+                docs[n] = doc;
+                scores[n] = score;
+                siftUp(n++);
+            } else {
+                docs[0] = doc;
+                scores[0] = score;
+                siftDown();
+            }
+        }
+
+        RankedPostingsList toPostingsList(int estimatedMatches) {
+            return new RankedPostingsList(docs, scores, n, k, Math.max(n, estimatedMatches));
+        }
+
+        /**
+         * Returns true if document a ranks below document b.
+         */
+        private boolean isWorse(int a, int b) {
+            return scores[a] < scores[b] || (scores[a] == scores[b] && docs[a] > docs[b]);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!isWorse(i, parent)) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown() {
+            int i = 0;
+            while (true) {
+                int worst = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < n && isWorse(left, worst)) {
+                    worst = left;
+                }
+                if (right < n && isWorse(right, worst)) {
+                    worst = right;
+                }
+                if (worst == i) {
+                    return;
+                }
+                swap(i, worst);
+                i = worst;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int doc = docs[i];
+            docs[i] = docs[j];
+            docs[j] = doc;
+            double score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+    }
+
+
+    public WandEvaluator(Index index, HashMap<Integer, Double> euclideanLengths) {
+        this.index = index;
+        this.euclideanLengths = euclideanLengths;
+    }
+
+    /**
+     * Returns the k best documents for the query, or null if the query has a
+     * term with a negative weight, for which the bounds do not hold.
+     */
+    public RankedPostingsList search(Query query, NormalizationType normType, int k) {
+        int N = Index.docLengths.size();
+        ArrayList<Cursor> cursors = new ArrayList<>();
+        double inNone = 1;
+        for (int i = 0; i < query.queryterm.size(); i++) {
+            String term = query.queryterm.get(i).term;
+            TermStats stats = index.getTermStats(term);
+            if (stats == null) {
+                continue;
+            }
+            DocIterator postings = DocIterator.forWord(index, term);
+            if (postings == null) {
+                continue;
+            }
+            inNone *= 1 - (double) stats.df / N;
+            double idf = Math.log((double) N / stats.df);
+            double weight = query.queryterm.get(i).weight;
+            if (idf * weight < 0) {
+                return null;
+            }
+            if (idf * weight == 0) {
+                // Adds nothing to any score.
+                continue;
+            }
+            cursors.add(new Cursor(postings, idf, weight, stats.maxTfPerNorm(normType) * idf * weight * BOUND_SLACK));
+        }
+        // The cursors in query order, so that scores are added up in the same order as
+        // in the exhaustive evaluation, and sorted by their current document.
+        Cursor[] terms = cursors.toArray(new Cursor[0]);
+        Cursor[] sorted = terms.clone();
+
+        TopDocs top = new TopDocs(k);
+        CancellationToken cancellation = CancellationToken.current();
+        for (int step = 0; ; step++) {
+            cancellation.check(step);
+            sortByDoc(sorted);
+            int pivot = -1;
+            double bound = 0;
+            for (int i = 0; i < sorted.length && sorted[i].doc != NO_MORE_DOCS; i++) {
+                bound += sorted[i].upperBound;
+                if (bound > top.threshold()) {
+                    pivot = i;
+                    break;
+                }
+            }
+            if (pivot < 0) {
+                break;
+            }
+            int pivotDoc = sorted[pivot].doc;
+            if (sorted[0].doc == pivotDoc) {
+                double score = 0;
+                for (Cursor cursor : terms) {
+                    if (cursor.doc == pivotDoc) {
+                        score += cursor.tf() * cursor.idf * cursor.weight;
+                        cursor.next();
+                    }
+                }
+                top.offer(pivotDoc, normalize(score, pivotDoc, normType));
+            } else {
+                for (int i = 0; i < pivot; i++) {
+                    sorted[i].advance(pivotDoc);
+                }
+            }
+        }
+        return top.toPostingsList(estimateMatches(N, inNone));
+    }
+
+    /**
+     * Estimates the number of documents containing any of the query terms,
+     * given the probability that a document contains none of them, as if
+     * the terms occurred independently.
+     */
+    static int estimateMatches(int N, double inNone) {
+        return (int) Math.round(N * (1 - inNone));
+    }
+
+    double normalize(double score, int docID, NormalizationType normType) {
+        if (score > 0) {
+            if (normType == NormalizationType.NUMBER_OF_WORDS) {
+                score /= Index.docLengths.get(docID);
+            } else if (normType == NormalizationType.EUCLIDEAN) {
+                score /= euclideanLengths.get(docID);
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Insertion sort, since the order changes little from one step to the next.
+     */
+    static void sortByDoc(Cursor[] cursors) {
+        for (int i = 1; i < cursors.length; i++) {
+            Cursor cursor = cursors[i];
+            int j = i - 1;
+            while (j >= 0 && cursors[j].doc > cursor.doc) {
+                cursors[j + 1] = cursors[j];
+                j--;
+            }
+            cursors[j + 1] = cursor;
+        }
+    }
+}
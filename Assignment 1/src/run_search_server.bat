@@ -0,0 +1 @@
+java -cp classes -Xmx1g ir.Engine -d "../../data/davisWiki" -p patterns.txt -ni -http 8080
@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp classes -Xmx1g ir.Engine -d "../../data/davisWiki" -p patterns.txt -ni -http 8080
\ No newline at end of file
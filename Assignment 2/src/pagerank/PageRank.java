@@ -79,6 +79,19 @@ public class PageRank {
         iterate(noOfDocs, 1000);
     }
 
+    /**
+     * Uses scores computed beforehand instead of reading the link graph.
+     *
+     * @param titles the file name of every document
+     * @param scores the score of every document, in the same order
+     */
+    public PageRank(String[] titles, double[] scores) {
+        for (int i = 0; i < titles.length; i++) {
+            docNumberMap.put(titles[i], i);
+        }
+        PageRank.scores = scores;
+    }
+
     public PageRank(String filename, int numberOfRuns) {
         int noOfDocs = readDocs(filename);
         docTitle = readTitles(DAVIS_TITLES_TXT);